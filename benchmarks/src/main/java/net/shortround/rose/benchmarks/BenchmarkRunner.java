@@ -0,0 +1,41 @@
+package net.shortround.rose.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, for allocation rates, and
+ * writes the results as JSON so runs from different releases can be
+ * compared. Any JMH command line options are passed through, so a single
+ * benchmark can still be picked with a regular expression.
+ */
+public class BenchmarkRunner {
+	// Where results go unless -rff says otherwise
+	private static final String RESULT_FILE = "rose-benchmarks.json";
+	
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		
+		ChainedOptionsBuilder builder = new OptionsBuilder()
+			.parent(commandLine)
+			.addProfiler(GCProfiler.class)
+			.resultFormat(ResultFormatType.JSON)
+			.result(commandLine.getResult().orElse(RESULT_FILE));
+		
+		// Run everything unless told otherwise
+		if (commandLine.getIncludes().isEmpty()) {
+			builder.include("net\\.shortround\\.rose\\.benchmarks\\..*");
+		}
+		
+		Options options = builder.build();
+		
+		new Runner(options).run();
+	}
+}
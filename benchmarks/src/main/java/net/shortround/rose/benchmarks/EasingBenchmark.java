@@ -0,0 +1,81 @@
+package net.shortround.rose.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.shortround.rose.Easing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One call of each shared easing curve against the framework formula it
+ * replaces, over a spread of inputs so nothing folds to a constant.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EasingBenchmark {
+	private static final long SEED = 42L;
+	
+	// A power of two, so the next input is a mask away
+	private static final int INPUTS = 1024;
+	
+	private float[] inputs;
+	private int index;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(SEED);
+		
+		inputs = new float[INPUTS];
+		for (int i = 0; i < INPUTS; i++) {
+			inputs[i] = random.nextFloat();
+		}
+	}
+	
+	private float next() {
+		index = (index + 1) & (INPUTS - 1);
+		return inputs[index];
+	}
+	
+	@Benchmark
+	public float decelerate() {
+		return Easing.DECELERATE.getInterpolation(next());
+	}
+	
+	/**
+	 * DecelerateInterpolator with the default factor.
+	 */
+	@Benchmark
+	public float decelerateFormula() {
+		float input = next();
+		return 1.0f - (1.0f - input) * (1.0f - input);
+	}
+	
+	@Benchmark
+	public float accelerateDecelerate() {
+		return Easing.ACCELERATE_DECELERATE.getInterpolation(next());
+	}
+	
+	/**
+	 * AccelerateDecelerateInterpolator.
+	 */
+	@Benchmark
+	public float accelerateDecelerateFormula() {
+		float input = next();
+		return (float) (Math.cos((input + 1) * Math.PI) / 2.0f) + 0.5f;
+	}
+}
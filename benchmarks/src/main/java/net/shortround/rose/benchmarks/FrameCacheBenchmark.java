@@ -0,0 +1,71 @@
+package net.shortround.rose.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.shortround.rose.FrameCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The lookup in front of every rose frame drawn: key packing and a least
+ * recently used hit, with byte arrays standing in for the decoded bitmaps.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCacheBenchmark {
+	// As the scene and the bitmap cache use them
+	private static final int LEVELS = 15;
+	private static final int KIND_STEM = 0;
+	private static final int KIND_PETALS = 1;
+	private static final int FRAME_BYTES = 1024;
+	
+	private FrameCache<byte[]> cache;
+	private int decay;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		cache = new FrameCache<byte[]>(LEVELS * 2 * FRAME_BYTES, new FrameCache.Sizer<byte[]>() {
+			public int sizeOf(byte[] value) {
+				return value.length;
+			}
+		});
+		
+		// Every frame fits, so each lookup is a hit
+		for (int level = 0; level < LEVELS; level++) {
+			cache.put(KIND_STEM, level, new byte[FRAME_BYTES]);
+			cache.put(KIND_PETALS, level, new byte[FRAME_BYTES]);
+		}
+	}
+	
+	/**
+	 * A frame drawn at the same decay, as most are.
+	 */
+	@Benchmark
+	public int hitSameDecay() {
+		return cache.get(KIND_STEM, 7).length + cache.get(KIND_PETALS, 7).length;
+	}
+	
+	/**
+	 * A frame drawn at each decay in turn, moving the recently used order
+	 * every time.
+	 */
+	@Benchmark
+	public int hitEveryDecay() {
+		decay = decay + 1 == LEVELS ? 0 : decay + 1;
+		return cache.get(KIND_STEM, decay).length + cache.get(KIND_PETALS, decay).length;
+	}
+}
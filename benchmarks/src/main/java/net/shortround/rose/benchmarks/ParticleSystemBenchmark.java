@@ -0,0 +1,84 @@
+package net.shortround.rose.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.shortround.rose.Box;
+import net.shortround.rose.ParticleSystem;
+import net.shortround.rose.Trajectory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Stepping and respawning a seeded particle system, sized like a 1280x800
+ * screen.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParticleSystemBenchmark {
+	private static final long SEED = 42L;
+	
+	@Param({ "10", "100", "1000", "10000" })
+	public int particles;
+	
+	@Param({ "LINEAR", "QUADRATIC_DRIFT", "GRAVITY" })
+	public String trajectory;
+	
+	private ParticleSystem system;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		Box generationBox = new Box(620.0f, 390.0f, 660.0f, 410.0f);
+		Box maxBox = new Box(0.0f, 760.0f, 1280.0f, 784.0f);
+		
+		system = new ParticleSystem(generationBox, maxBox, particles, SEED);
+		system.setTrajectory(getTrajectory(trajectory));
+		system.start();
+		
+		// One particle is born per step, so fill the system before measuring
+		for (int i = 0; i < particles; i++) {
+			system.step();
+		}
+	}
+	
+	/**
+	 * One step of a full system, ageing, moving and respawning particles.
+	 */
+	@Benchmark
+	public ParticleSystem.Particles step() {
+		system.step();
+		return system.getParticles();
+	}
+	
+	/**
+	 * Clearing the system and stepping it once, which spawns one particle
+	 * into an empty system; the cost of a birth without any ageing.
+	 */
+	@Benchmark
+	public void respawn(Blackhole blackhole) {
+		system.start();
+		system.step();
+		blackhole.consume(system.getParticles());
+	}
+	
+	private static Trajectory getTrajectory(String name) {
+		if ("QUADRATIC_DRIFT".equals(name)) return Trajectory.QUADRATIC_DRIFT;
+		if ("GRAVITY".equals(name)) return Trajectory.GRAVITY;
+		return Trajectory.LINEAR;
+	}
+}
@@ -0,0 +1,202 @@
+package net.shortround.rose.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.shortround.rose.CommandDispatcher;
+import net.shortround.rose.RoseProtocol;
+import net.shortround.rose.StreamFramer;
+import net.shortround.rose.TransitionScheduler;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding state replies and framing incoming commands, in both the text
+ * and the binary protocol, and taking framed commands all the way through
+ * the dispatcher to the transitions they ask for.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+	private static final int DECAY = 7;
+	private static final int MAX_DECAY = 14;
+	private static final int BATTERY = 83;
+	
+	// As the scene sets up its transitions
+	private static final int SLOTS = 4;
+	
+	private StreamFramer framer;
+	private byte[] textBurst;
+	private byte[] binaryBurst;
+	private byte[] dispatchTextBurst;
+	private byte[] dispatchBinaryBurst;
+	private int commands;
+	
+	private final StreamFramer.Listener listener = new StreamFramer.Listener() {
+		public void onCommand(int opcode, int sequence) {
+			commands += opcode;
+		}
+	};
+	
+	// The path a command takes on the UI thread, with a clock we move by hand
+	private TransitionScheduler transitions;
+	private CommandDispatcher dispatcher;
+	private long now;
+	private int replies;
+	
+	private final StreamFramer.Listener dispatchListener = new StreamFramer.Listener() {
+		public void onCommand(int opcode, int sequence) {
+			dispatcher.dispatch(opcode, 0, sequence);
+		}
+	};
+	
+	private final CommandDispatcher.Handler handler = new CommandDispatcher.Handler() {
+		public void onHello(int clientId, int sequence) {
+		}
+		
+		public void onDecay(int sequence) {
+			transitions.decay(now);
+		}
+		
+		public void onRevert(int sequence) {
+			transitions.revert(now);
+		}
+		
+		public void onDisplay(int sequence) {
+			transitions.toggleDisplay(now);
+		}
+		
+		public void onData(int sequence) {
+			replies += sequence;
+		}
+		
+		public void onStats(int clientId, int sequence) {
+		}
+		
+		public void onTrace() {
+		}
+		
+		public void onTrajectory() {
+		}
+	};
+	
+	private final TransitionScheduler.Listener transitionListener = new TransitionScheduler.Listener() {
+		public void onDropStarted(int slot, int decay, long durationMillis) {
+		}
+		
+		public void onDropFinished(int slot) {
+		}
+		
+		public void onReverted(int decay) {
+		}
+		
+		public void onDisplayChanged(boolean display) {
+		}
+	};
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		framer = new StreamFramer();
+		transitions = new TransitionScheduler(0, MAX_DECAY, SLOTS, transitionListener);
+		dispatcher = new CommandDispatcher(handler);
+		
+		// A burst of taps as a remote sends it, run together
+		textBurst = "decaydecayrevertdisplaydata".getBytes();
+		
+		binaryBurst = encode(RoseProtocol.OP_DECAY, RoseProtocol.OP_DECAY, RoseProtocol.OP_REVERT, RoseProtocol.OP_DISPLAY, RoseProtocol.OP_DATA);
+		
+		// One that leaves the rose as it found it, so every run does the same work
+		dispatchTextBurst = "decayrevertdisplaydisplaydata".getBytes();
+		dispatchBinaryBurst = encode(RoseProtocol.OP_DECAY, RoseProtocol.OP_REVERT, RoseProtocol.OP_DISPLAY, RoseProtocol.OP_DISPLAY, RoseProtocol.OP_DATA);
+	}
+	
+	private static byte[] encode(int... opcodes) {
+		byte[] burst = new byte[RoseProtocol.HEADER_LENGTH * opcodes.length];
+		for (int i = 0; i < opcodes.length; i++) {
+			RoseProtocol.writeHeader(burst, i * RoseProtocol.HEADER_LENGTH, opcodes[i], i, 0);
+		}
+		
+		return burst;
+	}
+	
+	/*** Encoding ***/
+	
+	@Benchmark
+	public byte[] encodeJsonState() throws JSONException {
+		return RoseProtocol.encodeJsonState(DECAY, MAX_DECAY, BATTERY, true).toString().getBytes();
+	}
+	
+	@Benchmark
+	public byte[] encodeBinaryState() {
+		return RoseProtocol.encodeState(1, DECAY, MAX_DECAY, BATTERY, true);
+	}
+	
+	/*** Parsing ***/
+	
+	/**
+	 * Framing five text commands that arrived in one read.
+	 */
+	@Benchmark
+	public int parseTextCommands() {
+		framer.write(textBurst, 0, textBurst.length);
+		return framer.drain(listener) + commands;
+	}
+	
+	/**
+	 * Framing the same five commands as binary frames.
+	 */
+	@Benchmark
+	public int parseBinaryCommands() {
+		framer.write(binaryBurst, 0, binaryBurst.length);
+		return framer.drain(listener) + commands;
+	}
+	
+	/*** Dispatch ***/
+	
+	/**
+	 * A decay, a revert and the display off and on again, then a request
+	 * for the state, framed, dispatched and run until the rose has caught up
+	 * and is back where it started.
+	 */
+	@Benchmark
+	public int dispatchTextCommands() {
+		framer.write(dispatchTextBurst, 0, dispatchTextBurst.length);
+		framer.drain(dispatchListener);
+		return settle();
+	}
+	
+	/**
+	 * The same five commands as binary frames.
+	 */
+	@Benchmark
+	public int dispatchBinaryCommands() {
+		framer.write(dispatchBinaryBurst, 0, dispatchBinaryBurst.length);
+		framer.drain(dispatchListener);
+		return settle();
+	}
+	
+	private int settle() {
+		// Jump the clock from one deadline to the next, as the UI thread's timer would
+		long deadline;
+		while ((deadline = transitions.getNextDeadline()) != TransitionScheduler.NO_DEADLINE) {
+			now = Math.max(now, deadline);
+			transitions.update(now);
+		}
+		
+		return transitions.getDecay() + replies;
+	}
+}
@@ -0,0 +1,154 @@
+package net.shortround.rose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The transition table and the re-listening backoff that both transports
+ * share.
+ */
+public class ConnectionStateMachineTest {
+	private static final int[] STATES = {
+		Transport.STATE_NONE,
+		Transport.STATE_LISTEN,
+		Transport.STATE_CONNECTING,
+		Transport.STATE_CONNECTED,
+		Transport.STATE_BACKOFF
+	};
+	
+	/**
+	 * Records every change as "old->new".
+	 */
+	private static class RecordingListener implements ConnectionStateMachine.Listener {
+		final List<String> changes = new ArrayList<String>();
+		
+		public void onStateChanged(int oldState, int newState) {
+			changes.add(oldState + "->" + newState);
+		}
+	}
+	
+	private static boolean expected(int from, int to) {
+		if (to == Transport.STATE_NONE) return true;
+		
+		switch (from) {
+		case Transport.STATE_NONE:
+			return to == Transport.STATE_LISTEN;
+		case Transport.STATE_LISTEN:
+			return to == Transport.STATE_CONNECTED || to == Transport.STATE_BACKOFF;
+		case Transport.STATE_CONNECTED:
+			return to == Transport.STATE_LISTEN || to == Transport.STATE_BACKOFF;
+		case Transport.STATE_BACKOFF:
+			return to == Transport.STATE_LISTEN || to == Transport.STATE_CONNECTED;
+		default:
+			return false;
+		}
+	}
+	
+	@Test
+	public void transitionTable() {
+		// Every pair, written out again so a change to the table has to be made twice
+		for (int from : STATES) {
+			for (int to : STATES) {
+				if (from == to) continue;
+				assertEquals(from + "->" + to, expected(from, to), ConnectionStateMachine.isAllowed(from, to));
+			}
+		}
+	}
+	
+	@Test
+	public void startsStopped() {
+		ConnectionStateMachine machine = new ConnectionStateMachine(new RecordingListener());
+		assertEquals(Transport.STATE_NONE, machine.getState());
+	}
+	
+	@Test
+	public void allowedTransitionsAreMadeAndReported() {
+		RecordingListener listener = new RecordingListener();
+		ConnectionStateMachine machine = new ConnectionStateMachine(listener);
+		
+		// Listen, fail and recover, lose a remote while listening and one while
+		// not, take one during the backoff, then stop
+		int[] path = {
+			Transport.STATE_LISTEN,
+			Transport.STATE_BACKOFF,
+			Transport.STATE_LISTEN,
+			Transport.STATE_CONNECTED,
+			Transport.STATE_LISTEN,
+			Transport.STATE_CONNECTED,
+			Transport.STATE_BACKOFF,
+			Transport.STATE_CONNECTED,
+			Transport.STATE_NONE
+		};
+		
+		int previous = Transport.STATE_NONE;
+		List<String> expected = new ArrayList<String>();
+		for (int state : path) {
+			assertTrue(machine.transition(state));
+			assertEquals(state, machine.getState());
+			expected.add(previous + "->" + state);
+			previous = state;
+		}
+		
+		assertEquals(expected, listener.changes);
+	}
+	
+	@Test
+	public void refusedTransitionsStayPut() {
+		RecordingListener listener = new RecordingListener();
+		ConnectionStateMachine machine = new ConnectionStateMachine(listener);
+		
+		// Nothing but listening comes straight out of a stop
+		assertFalse(machine.transition(Transport.STATE_CONNECTED));
+		assertFalse(machine.transition(Transport.STATE_BACKOFF));
+		assertFalse(machine.transition(Transport.STATE_CONNECTING));
+		assertEquals(Transport.STATE_NONE, machine.getState());
+		
+		// Nothing leads to connecting
+		machine.transition(Transport.STATE_LISTEN);
+		assertFalse(machine.transition(Transport.STATE_CONNECTING));
+		assertEquals(Transport.STATE_LISTEN, machine.getState());
+		
+		assertEquals(1, listener.changes.size());
+	}
+	
+	@Test
+	public void sameStateIsAllowedSilently() {
+		RecordingListener listener = new RecordingListener();
+		ConnectionStateMachine machine = new ConnectionStateMachine(listener);
+		
+		assertTrue(machine.transition(Transport.STATE_NONE));
+		machine.transition(Transport.STATE_LISTEN);
+		assertTrue(machine.transition(Transport.STATE_LISTEN));
+		
+		assertEquals(1, listener.changes.size());
+	}
+	
+	@Test
+	public void backoffDoublesUpToTheMaximum() {
+		ConnectionStateMachine machine = new ConnectionStateMachine(new RecordingListener());
+		
+		long[] expected = { 250, 500, 1000, 2000, 4000, 8000, 8000, 8000 };
+		for (long wait : expected) {
+			assertEquals(wait, machine.nextBackoffMillis());
+		}
+		assertEquals(ConnectionStateMachine.MIN_BACKOFF_MILLIS, expected[0]);
+		assertEquals(ConnectionStateMachine.MAX_BACKOFF_MILLIS, expected[expected.length - 1]);
+	}
+	
+	@Test
+	public void backoffResetsOnceListeningWorks() {
+		ConnectionStateMachine machine = new ConnectionStateMachine(new RecordingListener());
+		
+		for (int i = 0; i < 10; i++) machine.nextBackoffMillis();
+		machine.resetBackoff();
+		
+		assertEquals(250, machine.nextBackoffMillis());
+		assertEquals(500, machine.nextBackoffMillis());
+	}
+}
@@ -0,0 +1,59 @@
+package net.shortround.rose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The shared curves against the framework interpolators they stand in for.
+ */
+public class EasingTest {
+	// Inputs checked across [0, 1]
+	private static final int SAMPLES = 100000;
+	
+	// Well under a pixel over a screen length
+	private static final double TOLERANCE = 1e-5;
+	
+	@Test
+	public void decelerateMatchesFramework() {
+		for (int i = 0; i <= SAMPLES; i++) {
+			float input = (float) i / SAMPLES;
+			double expected = 1.0 - (1.0 - input) * (1.0 - input);
+			
+			assertEquals("input " + input, expected, Easing.DECELERATE.getInterpolation(input), TOLERANCE);
+		}
+	}
+	
+	@Test
+	public void accelerateDecelerateMatchesFramework() {
+		for (int i = 0; i <= SAMPLES; i++) {
+			float input = (float) i / SAMPLES;
+			double expected = Math.cos((input + 1.0) * Math.PI) / 2.0 + 0.5;
+			
+			assertEquals("input " + input, expected, Easing.ACCELERATE_DECELERATE.getInterpolation(input), TOLERANCE);
+		}
+	}
+	
+	@Test
+	public void endsAreExactAndClamped() {
+		for (Easing easing : new Easing[] { Easing.DECELERATE, Easing.ACCELERATE_DECELERATE }) {
+			assertEquals(0.0f, easing.getInterpolation(0.0f), 0.0f);
+			assertEquals(1.0f, easing.getInterpolation(1.0f), 0.0f);
+			assertEquals(0.0f, easing.getInterpolation(-0.5f), 0.0f);
+			assertEquals(1.0f, easing.getInterpolation(1.5f), 0.0f);
+		}
+	}
+	
+	@Test
+	public void curvesNeverStepBack() {
+		for (Easing easing : new Easing[] { Easing.DECELERATE, Easing.ACCELERATE_DECELERATE }) {
+			float last = easing.getInterpolation(0.0f);
+			for (int i = 1; i <= SAMPLES; i++) {
+				float value = easing.getInterpolation((float) i / SAMPLES);
+				assertTrue("input " + i, value >= last);
+				last = value;
+			}
+		}
+	}
+}
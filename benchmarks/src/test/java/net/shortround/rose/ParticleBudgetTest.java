@@ -0,0 +1,129 @@
+package net.shortround.rose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The budget's hysteresis, window by window on a clock we move by hand.
+ */
+public class ParticleBudgetTest {
+	private static final long TARGET_NANOS = 8000000L;
+	
+	// Costs either side of the thresholds
+	private static final long OVER = TARGET_NANOS + 1;
+	private static final long WELL_UNDER = (long) (TARGET_NANOS * 0.6f) - 1;
+	private static final long JUST_UNDER = (long) (TARGET_NANOS * 0.6f);
+	
+	private ParticleBudget budget;
+	private long now;
+	
+	@Before
+	public void setUp() {
+		budget = new ParticleBudget(TARGET_NANOS);
+		
+		// Open the first window at zero, as a fresh clock would read
+		now = 0;
+		assertFalse(budget.update(now));
+	}
+	
+	/**
+	 * Draws one frame at the given cost and closes the window, returning
+	 * whether the level changed.
+	 */
+	private boolean window(long costNanos) {
+		budget.recordDraw(costNanos);
+		now += ParticleBudget.WINDOW_NANOS;
+		return budget.update(now);
+	}
+	
+	/**
+	 * Runs windows at the given cost, failing if the level changes before
+	 * the last one, and returns whether the last one changed it.
+	 */
+	private boolean windows(int count, long costNanos) {
+		for (int i = 0; i < count - 1; i++) {
+			assertFalse("Changed after " + (i + 1) + " windows", window(costNanos));
+		}
+		
+		return window(costNanos);
+	}
+	
+	@Test
+	public void thresholds() {
+		assertEquals(500000000L, ParticleBudget.WINDOW_NANOS);
+		assertEquals(2, ParticleBudget.DOWN_WINDOWS);
+		assertEquals(6, ParticleBudget.UP_WINDOWS);
+		assertEquals(0.6f, ParticleBudget.UP_FRACTION, 0.0f);
+		assertEquals(6000000000L, ParticleBudget.SETTLE_WINDOWS * ParticleBudget.WINDOW_NANOS);
+	}
+	
+	@Test
+	public void dropsAfterTwoWindowsOver() {
+		assertTrue(windows(2, OVER));
+		assertEquals(ParticleBudget.DEFAULT_LEVEL - 1, budget.getLevel());
+	}
+	
+	@Test
+	public void oneWindowOverIsForgiven() {
+		assertFalse(window(OVER));
+		assertFalse(window(TARGET_NANOS));
+		assertFalse(window(OVER));
+		assertEquals(ParticleBudget.DEFAULT_LEVEL, budget.getLevel());
+	}
+	
+	@Test
+	public void risesAfterSixWindowsWellUnder() {
+		assertTrue(windows(6, WELL_UNDER));
+		assertEquals(ParticleBudget.DEFAULT_LEVEL + 1, budget.getLevel());
+	}
+	
+	@Test
+	public void staysPutJustUnderTheTarget() {
+		// Under the target but not under sixty percent of it
+		for (int i = 0; i < 20; i++) assertFalse(window(JUST_UNDER));
+		assertEquals(ParticleBudget.DEFAULT_LEVEL, budget.getLevel());
+	}
+	
+	@Test
+	public void settlesForSixSecondsAfterAChange() {
+		assertTrue(windows(6, WELL_UNDER));
+		int level = budget.getLevel();
+		
+		// Frames over the target are ignored while the particles catch up
+		for (int i = 0; i < ParticleBudget.SETTLE_WINDOWS; i++) {
+			assertFalse("Changed while settling", window(OVER));
+		}
+		assertEquals(level, budget.getLevel());
+		
+		// Then counted from scratch
+		assertTrue(windows(2, OVER));
+		assertEquals(level - 1, budget.getLevel());
+	}
+	
+	@Test
+	public void windowsCloseOnTheClockAlone() {
+		// Costs within a window are added up, however many updates come
+		budget.recordDraw(OVER);
+		assertFalse(budget.update(now + ParticleBudget.WINDOW_NANOS - 1));
+		budget.recordDraw(OVER);
+		now += ParticleBudget.WINDOW_NANOS;
+		assertFalse(budget.update(now));
+		
+		assertTrue(window(OVER));
+	}
+	
+	@Test
+	public void windowsWithoutFramesDontCount() {
+		assertFalse(window(OVER));
+		
+		// Nothing drawn, say while hidden
+		now += ParticleBudget.WINDOW_NANOS;
+		assertFalse(budget.update(now));
+		
+		assertTrue(window(OVER));
+	}
+}
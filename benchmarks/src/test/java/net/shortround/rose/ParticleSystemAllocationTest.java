@@ -0,0 +1,114 @@
+package net.shortround.rose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Steps and reads the particles the way the views do once they are warmed
+ * up, and fails on any byte allocated. This is the off-device half of the
+ * allocation checking; AllocationChecker covers the Android draw path.
+ */
+public class ParticleSystemAllocationTest {
+	private static final long SEED = 42L;
+	private static final int CAPACITY = 200;
+	
+	// Enough steps to fill the system and recycle every particle a few times
+	private static final int WARM_UP_STEPS = 2000;
+	private static final int MEASURED_STEPS = 2000;
+	
+	private com.sun.management.ThreadMXBean threads;
+	private boolean metricsEnabled;
+	
+	@Before
+	public void setUp() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		
+		threads = (com.sun.management.ThreadMXBean) bean;
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		
+		metricsEnabled = Metrics.isEnabled();
+	}
+	
+	@After
+	public void tearDown() {
+		Metrics.setEnabled(metricsEnabled);
+	}
+	
+	private static ParticleSystem createSystem() {
+		Box generationBox = new Box(620.0f, 390.0f, 660.0f, 410.0f);
+		Box maxBox = new Box(0.0f, 760.0f, 1280.0f, 784.0f);
+		
+		ParticleSystem system = new ParticleSystem(generationBox, maxBox, CAPACITY, SEED);
+		system.setBudget(CAPACITY, 4);
+		return system;
+	}
+	
+	@Test
+	public void steadyStateStepAllocatesNothing() {
+		Metrics.setEnabled(false);
+		assertEquals(0, measure(createSystem(), Trajectory.LINEAR));
+	}
+	
+	@Test
+	public void steadyStateStepAllocatesNothingWithMetrics() {
+		// Histograms, gauges and trace spans are on the step path too
+		Metrics.setEnabled(true);
+		assertEquals(0, measure(createSystem(), Trajectory.LINEAR));
+	}
+	
+	@Test
+	public void everyTrajectoryAllocatesNothing() {
+		Metrics.setEnabled(false);
+		assertEquals(0, measure(createSystem(), Trajectory.QUADRATIC_DRIFT));
+		assertEquals(0, measure(createSystem(), Trajectory.GRAVITY));
+	}
+	
+	// Bytes allocated by the measured steps and reads, after a warm up
+	private long measure(ParticleSystem system, Trajectory trajectory) {
+		system.setTrajectory(trajectory);
+		system.start();
+		long checksum = run(system, WARM_UP_STEPS);
+		
+		long thread = Thread.currentThread().getId();
+		long overhead = measureOverhead(thread);
+		long before = threads.getThreadAllocatedBytes(thread);
+		checksum += run(system, MEASURED_STEPS);
+		long after = threads.getThreadAllocatedBytes(thread);
+		
+		// Keep the reads from being optimised away
+		if (checksum == Long.MIN_VALUE) System.out.println(checksum);
+		
+		return Math.max(0, after - before - overhead);
+	}
+	
+	private static long run(ParticleSystem system, int steps) {
+		long checksum = 0;
+		for (int i = 0; i < steps; i++) {
+			system.step();
+			
+			// Drawing takes the latest snapshot every frame
+			ParticleSystem.Particles particles = system.getParticles();
+			for (int p = 0; p < particles.size(); p++) {
+				checksum += particles.getOpacity(p) + (long) particles.getX(p, 0.5f);
+			}
+		}
+		
+		return checksum;
+	}
+	
+	// What reading the counter costs by itself, so only the steps are counted
+	private long measureOverhead(long thread) {
+		long before = threads.getThreadAllocatedBytes(thread);
+		long after = threads.getThreadAllocatedBytes(thread);
+		
+		return after - before;
+	}
+}
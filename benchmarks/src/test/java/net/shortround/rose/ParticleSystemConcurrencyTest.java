@@ -0,0 +1,146 @@
+package net.shortround.rose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Stepping and drawing the particles from two threads, as the views do. The
+ * drawing thread must only ever see whole steps, and a snapshot it holds must
+ * not change under it.
+ */
+public class ParticleSystemConcurrencyTest {
+	private static final long SEED = 42L;
+	private static final int CAPACITY = 200;
+	
+	// How long the two threads race
+	private static final long RACE_NANOS = 1000000000L;
+	
+	private static ParticleSystem createSystem() {
+		Box generationBox = new Box(620.0f, 390.0f, 660.0f, 410.0f);
+		Box maxBox = new Box(0.0f, 760.0f, 1280.0f, 784.0f);
+		
+		ParticleSystem system = new ParticleSystem(generationBox, maxBox, CAPACITY, SEED);
+		system.setBudget(CAPACITY, 4);
+		return system;
+	}
+	
+	@Test
+	public void drawingKeepsItsSnapshotUntilItAsksAgain() {
+		ParticleSystem system = createSystem();
+		system.start();
+		system.step();
+		
+		ParticleSystem.Particles first = system.getParticles();
+		assertSame(first, system.getParticles());
+		
+		// A step publishes a newer snapshot, in a different buffer
+		system.step();
+		ParticleSystem.Particles second = system.getParticles();
+		assertNotSame(first, second);
+		assertTrue(second.size() >= first.size());
+	}
+	
+	@Test
+	public void stoppingPublishesAnEmptySnapshot() {
+		ParticleSystem system = createSystem();
+		system.start();
+		for (int i = 0; i < 10; i++) system.step();
+		assertTrue(system.getParticles().size() > 0);
+		
+		system.stop();
+		assertEquals(0, system.getParticles().size());
+	}
+	
+	@Test
+	public void concurrentStepAndDrawNeverTears() throws Exception {
+		final ParticleSystem system = createSystem();
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch finished = new CountDownLatch(2);
+		
+		system.start();
+		
+		Thread stepper = new Thread(new Runnable() {
+			public void run() {
+				try {
+					int steps = 0;
+					while (!done.get()) {
+						system.step();
+						
+						// Clear it now and then, as a hidden rose does
+						if (++steps % 500 == 0) {
+							system.stop();
+							system.start();
+						}
+					}
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				} finally {
+					finished.countDown();
+				}
+			}
+		}, "Stepper");
+		
+		final int[] frames = new int[1];
+		Thread drawer = new Thread(new Runnable() {
+			public void run() {
+				float[] x = new float[CAPACITY];
+				float[] y = new float[CAPACITY];
+				int[] opacity = new int[CAPACITY];
+				
+				try {
+					while (!done.get()) {
+						ParticleSystem.Particles particles = system.getParticles();
+						int size = particles.size();
+						assertTrue(size >= 0 && size <= particles.capacity());
+						
+						// Read it once, give the stepper time to write, read it again
+						for (int i = 0; i < size; i++) {
+							x[i] = particles.getX(i);
+							y[i] = particles.getY(i);
+							opacity[i] = particles.getOpacity(i);
+							assertTrue(opacity[i] >= 0 && opacity[i] <= 255);
+						}
+						Thread.yield();
+						
+						assertEquals(size, particles.size());
+						for (int i = 0; i < size; i++) {
+							assertEquals(x[i], particles.getX(i), 0.0f);
+							assertEquals(y[i], particles.getY(i), 0.0f);
+							assertEquals(opacity[i], particles.getOpacity(i));
+						}
+						
+						frames[0]++;
+					}
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				} finally {
+					finished.countDown();
+				}
+			}
+		}, "Drawer");
+		
+		stepper.start();
+		drawer.start();
+		
+		long deadline = System.nanoTime() + RACE_NANOS;
+		while (System.nanoTime() < deadline && failure.get() == null) {
+			Thread.sleep(10);
+		}
+		done.set(true);
+		
+		assertTrue(finished.await(5, TimeUnit.SECONDS));
+		if (failure.get() != null) throw new AssertionError(failure.get());
+		assertFalse(frames[0] == 0);
+	}
+}
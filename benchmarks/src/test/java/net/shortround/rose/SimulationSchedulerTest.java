@@ -0,0 +1,454 @@
+package net.shortround.rose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Driving the scheduler as the view does, from whatever thread happens to
+ * call, both directly and through the host the view and scene share. Steps
+ * must never overlap each other or the start and stop callbacks, and none
+ * may run once a stop or pause has gone through.
+ */
+public class SimulationSchedulerTest {
+	// How long to wait for the stepping thread to catch up
+	private static final long SETTLE_MILLIS = 50;
+	private static final long QUIET_MILLIS = 200;
+	private static final long TIMEOUT_MILLIS = 2000;
+	
+	// How long the calling threads race
+	private static final long RACE_NANOS = 1000000000L;
+	
+	private SimulationScheduler scheduler;
+	
+	@After
+	public void shutdown() {
+		if (scheduler != null) scheduler.shutdown();
+	}
+	
+	@Test
+	public void stepsRepeatWhileRunning() throws Exception {
+		Recorder recorder = new Recorder(2);
+		scheduler = new SimulationScheduler(recorder, "SimulationTestThread");
+		
+		scheduler.start();
+		recorder.awaitSteps(10);
+		
+		assertTrue(scheduler.isRunning());
+		assertEquals(1, recorder.starts.get());
+		assertEquals(0, recorder.stops.get());
+		assertTrue(scheduler.getSteps() >= 10);
+		recorder.assertClean();
+	}
+	
+	@Test
+	public void noStepsAfterStop() throws Exception {
+		Recorder recorder = new Recorder(1);
+		scheduler = new SimulationScheduler(recorder, "SimulationTestThread");
+		
+		scheduler.start();
+		recorder.awaitSteps(5);
+		scheduler.stop();
+		recorder.awaitStops(1);
+		
+		recorder.assertQuiet();
+		
+		// Resuming only carries on after a pause
+		scheduler.resume();
+		recorder.assertQuiet();
+		assertEquals(SimulationScheduler.STATE_STOPPED, scheduler.getState());
+		recorder.assertClean();
+	}
+	
+	@Test
+	public void noStepsWhilePaused() throws Exception {
+		Recorder recorder = new Recorder(1);
+		scheduler = new SimulationScheduler(recorder, "SimulationTestThread");
+		
+		scheduler.start();
+		recorder.awaitSteps(5);
+		scheduler.pause();
+		Thread.sleep(SETTLE_MILLIS);
+		
+		recorder.assertQuiet();
+		assertEquals(0, recorder.stops.get());
+		
+		// Picks up the same simulation again
+		long steps = recorder.steps.get();
+		scheduler.resume();
+		recorder.awaitSteps(steps + 5);
+		assertEquals(1, recorder.starts.get());
+		recorder.assertClean();
+	}
+	
+	@Test
+	public void stepLengthChangesTakeEffect() throws Exception {
+		Recorder recorder = new Recorder(QUIET_MILLIS * 10);
+		scheduler = new SimulationScheduler(recorder, "SimulationTestThread");
+		
+		scheduler.start();
+		recorder.awaitSteps(1);
+		
+		// The step already waiting keeps its length
+		recorder.stepMillis = 1;
+		Thread.sleep(SETTLE_MILLIS);
+		assertEquals(1, recorder.steps.get());
+		
+		// A restart steps straight away and picks up the shorter length,
+		// then lengthening it slows the steps right down
+		scheduler.start();
+		recorder.awaitStarts(2);
+		recorder.awaitSteps(20);
+		recorder.stepMillis = QUIET_MILLIS * 10;
+		Thread.sleep(SETTLE_MILLIS);
+		recorder.assertQuiet();
+		recorder.assertClean();
+	}
+	
+	@Test
+	public void rapidStateChangesNeverOverlapSteps() throws Exception {
+		final Recorder recorder = new Recorder(1);
+		scheduler = new SimulationScheduler(recorder, "SimulationTestThread");
+		
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final int threads = 4;
+		final CountDownLatch finished = new CountDownLatch(threads + 1);
+		
+		// Callers flip the state from every side
+		for (int i = 0; i < threads; i++) {
+			final Random random = new Random(i);
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (!done.get()) {
+							switch (random.nextInt(4)) {
+								case 0: scheduler.start(); break;
+								case 1: scheduler.stop(); break;
+								case 2: scheduler.pause(); break;
+								default: scheduler.resume(); break;
+							}
+							if (random.nextInt(8) == 0) Thread.sleep(1);
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					} finally {
+						finished.countDown();
+					}
+				}
+			}, "Caller" + i).start();
+		}
+		
+		// The budget keeps changing the step length as well
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					Random random = new Random(threads);
+					while (!done.get()) {
+						recorder.stepMillis = 1 + random.nextInt(3);
+						Thread.sleep(1);
+					}
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				} finally {
+					finished.countDown();
+				}
+			}
+		}, "Budget").start();
+		
+		long end = System.nanoTime() + RACE_NANOS;
+		while (System.nanoTime() < end && failure.get() == null) Thread.sleep(10);
+		done.set(true);
+		assertTrue(finished.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+		if (failure.get() != null) throw new AssertionError(failure.get());
+		recorder.assertClean();
+		
+		// Still answers once the callers have gone
+		long steps = recorder.steps.get();
+		int stops = recorder.stops.get();
+		scheduler.start();
+		recorder.awaitSteps(steps + 5);
+		scheduler.stop();
+		recorder.awaitStops(stops + 1);
+		recorder.assertQuiet();
+		recorder.assertClean();
+	}
+	
+	@Test
+	public void shutdownEndsStepping() throws Exception {
+		Recorder recorder = new Recorder(1);
+		scheduler = new SimulationScheduler(recorder, "SimulationTestThread");
+		
+		scheduler.start();
+		recorder.awaitSteps(5);
+		scheduler.shutdown();
+		Thread.sleep(SETTLE_MILLIS);
+		recorder.assertQuiet();
+		
+		// Nothing comes back from a shutdown
+		scheduler.start();
+		assertEquals(SimulationScheduler.STATE_SHUTDOWN, scheduler.getState());
+		assertFalse(scheduler.isRunning());
+		recorder.assertQuiet();
+		recorder.assertClean();
+	}
+	
+	/*** Through the view's host ***/
+	
+	@Test
+	public void reattachedViewStepsAgain() throws Exception {
+		Recorder recorder = new Recorder(1);
+		scheduler = new SimulationScheduler(recorder, "SimulationTestThread");
+		SimulationHost host = new SimulationHost(scheduler);
+		
+		// Built before it's attached, as the view is
+		host.start();
+		recorder.awaitStarts(1);
+		recorder.assertQuiet();
+		
+		host.setAttached(true);
+		recorder.awaitSteps(5);
+		
+		// Taken off the window and put back, say by a layout change
+		host.setAttached(false);
+		Thread.sleep(SETTLE_MILLIS);
+		recorder.assertQuiet();
+		assertEquals(SimulationScheduler.STATE_PAUSED, scheduler.getState());
+		
+		long steps = recorder.steps.get();
+		host.setAttached(true);
+		recorder.awaitSteps(steps + 5);
+		assertEquals(1, recorder.starts.get());
+		assertEquals(0, recorder.stops.get());
+		recorder.assertClean();
+	}
+	
+	@Test
+	public void hostOnlyStepsWhenStartedAttachedAndVisible() throws Exception {
+		Recorder recorder = new Recorder(1);
+		scheduler = new SimulationScheduler(recorder, "SimulationTestThread");
+		SimulationHost host = new SimulationHost(scheduler);
+		host.setAttached(true);
+		host.setVisible(false);
+		
+		// A resize while hidden restarts the particles but doesn't step them
+		host.stop();
+		host.start();
+		recorder.awaitStarts(1);
+		recorder.assertQuiet();
+		
+		host.setVisible(true);
+		recorder.awaitSteps(5);
+		
+		// Hiding the rose stops them, and being shown again doesn't bring them back
+		host.stop();
+		recorder.awaitStops(1);
+		host.setVisible(false);
+		host.setVisible(true);
+		host.setAttached(false);
+		host.setAttached(true);
+		recorder.assertQuiet();
+		assertEquals(SimulationScheduler.STATE_STOPPED, scheduler.getState());
+		recorder.assertClean();
+	}
+	
+	@Test
+	public void resizesAndDisplayTogglesNeverOverlapSteps() throws Exception {
+		final Recorder recorder = new Recorder(1);
+		scheduler = new SimulationScheduler(recorder, "SimulationTestThread");
+		final SimulationHost host = new SimulationHost(scheduler);
+		host.setAttached(true);
+		host.start();
+		
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch finished = new CountDownLatch(3);
+		
+		// The scene's paths: a resize stops and restarts the particles, and a
+		// display toggle starts them when the rose is shown and stops them
+		// when it's hidden
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					Random random = new Random(0);
+					boolean display = true;
+					while (!done.get()) {
+						if (random.nextBoolean()) {
+							host.stop();
+							host.start();
+						} else {
+							display = !display;
+							if (display) {
+								host.start();
+							} else {
+								host.stop();
+							}
+						}
+						if (random.nextInt(8) == 0) Thread.sleep(1);
+					}
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				} finally {
+					finished.countDown();
+				}
+			}
+		}, "Scene").start();
+		
+		// The window comes and goes underneath
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					Random random = new Random(1);
+					while (!done.get()) {
+						if (random.nextBoolean()) {
+							host.setVisible(random.nextInt(4) != 0);
+						} else {
+							host.setAttached(random.nextInt(4) != 0);
+						}
+						Thread.sleep(1);
+					}
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				} finally {
+					finished.countDown();
+				}
+			}
+		}, "Window").start();
+		
+		// And the budget keeps changing the step length
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					Random random = new Random(2);
+					while (!done.get()) {
+						recorder.stepMillis = 1 + random.nextInt(3);
+						Thread.sleep(1);
+					}
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				} finally {
+					finished.countDown();
+				}
+			}
+		}, "Budget").start();
+		
+		long end = System.nanoTime() + RACE_NANOS;
+		while (System.nanoTime() < end && failure.get() == null) Thread.sleep(10);
+		done.set(true);
+		assertTrue(finished.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+		if (failure.get() != null) throw new AssertionError(failure.get());
+		recorder.assertClean();
+		assertTrue(recorder.steps.get() > 0);
+		assertTrue(recorder.starts.get() > 1);
+		
+		// Settles as the last calls left it
+		int starts = recorder.starts.get();
+		host.setVisible(true);
+		host.setAttached(true);
+		host.start();
+		recorder.awaitStarts(starts + 1);
+		long steps = recorder.steps.get();
+		recorder.awaitSteps(steps + 5);
+		int stops = recorder.stops.get();
+		host.stop();
+		recorder.awaitStops(stops + 1);
+		recorder.assertQuiet();
+		recorder.assertClean();
+	}
+	
+	// Records every call and anything that runs out of turn
+	private static class Recorder implements SimulationScheduler.Simulation {
+		final AtomicInteger starts = new AtomicInteger();
+		final AtomicInteger stops = new AtomicInteger();
+		final AtomicLong steps = new AtomicLong();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final AtomicInteger strays = new AtomicInteger();
+		volatile long stepMillis;
+		
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private boolean started;
+		
+		Recorder(long stepMillis) {
+			this.stepMillis = stepMillis;
+		}
+		
+		public void onStart() {
+			enter();
+			started = true;
+			starts.incrementAndGet();
+			leave();
+		}
+		
+		public void onStop() {
+			enter();
+			started = false;
+			stops.incrementAndGet();
+			leave();
+		}
+		
+		public long step() {
+			enter();
+			
+			// Only a started simulation is ever stepped
+			if (!started) strays.incrementAndGet();
+			steps.incrementAndGet();
+			
+			leave();
+			return stepMillis;
+		}
+		
+		private void enter() {
+			if (inFlight.incrementAndGet() != 1) overlaps.incrementAndGet();
+		}
+		
+		private void leave() {
+			inFlight.decrementAndGet();
+		}
+		
+		void awaitSteps(long count) throws InterruptedException {
+			long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+			while (steps.get() < count) {
+				assertTrue("Waiting for " + count + " steps", System.currentTimeMillis() < end);
+				Thread.sleep(1);
+			}
+		}
+		
+		void awaitStarts(int count) throws InterruptedException {
+			long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+			while (starts.get() < count) {
+				assertTrue("Waiting for " + count + " starts", System.currentTimeMillis() < end);
+				Thread.sleep(1);
+			}
+		}
+		
+		void awaitStops(int count) throws InterruptedException {
+			long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+			while (stops.get() < count) {
+				assertTrue("Waiting for " + count + " stops", System.currentTimeMillis() < end);
+				Thread.sleep(1);
+			}
+		}
+		
+		void assertQuiet() throws InterruptedException {
+			long before = steps.get();
+			Thread.sleep(QUIET_MILLIS);
+			assertEquals("Stepped while it should be quiet", before, steps.get());
+		}
+		
+		void assertClean() {
+			assertEquals("Overlapping calls", 0, overlaps.get());
+			assertEquals("Steps outside a start", 0, strays.get());
+		}
+	}
+}
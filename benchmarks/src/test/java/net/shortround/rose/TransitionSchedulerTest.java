@@ -0,0 +1,298 @@
+package net.shortround.rose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The transition scheduler driven by hand, with no display and no clock:
+ * every call is given its time, and the scheduler's own deadlines say when
+ * to come back, as the scene's handler does.
+ */
+public class TransitionSchedulerTest {
+	private static final int MIN_DECAY = 0;
+	private static final int MAX_DECAY = 14;
+	private static final int SLOTS = 4;
+	
+	/**
+	 * Keeps every transition, and checks the rules hold as they happen.
+	 */
+	private static class Recorder implements TransitionScheduler.Listener {
+		final List<String> events = new ArrayList<String>();
+		final List<Long> durations = new ArrayList<Long>();
+		final boolean[] slots = new boolean[SLOTS];
+		int decay = MIN_DECAY;
+		boolean display = true;
+		int inFlight;
+		
+		public void onDropStarted(int slot, int level, long durationMillis) {
+			assertFalse("Slot " + slot + " already falling", slots[slot]);
+			assertEquals("Drops go one level at a time", decay + 1, level);
+			slots[slot] = true;
+			inFlight++;
+			decay = level;
+			durations.add(durationMillis);
+			events.add("drop " + level);
+		}
+		
+		public void onDropFinished(int slot) {
+			assertTrue("Slot " + slot + " wasn't falling", slots[slot]);
+			slots[slot] = false;
+			inFlight--;
+		}
+		
+		public void onReverted(int level) {
+			assertEquals("Reverts wait for the air to clear", 0, inFlight);
+			assertEquals("Reverts go one level at a time", decay - 1, level);
+			decay = level;
+			events.add("revert " + level);
+		}
+		
+		public void onDisplayChanged(boolean value) {
+			assertEquals("Toggles wait for the air to clear", 0, inFlight);
+			assertEquals(!display, value);
+			display = value;
+			events.add("display " + value);
+		}
+	}
+	
+	private static TransitionScheduler create(Recorder recorder) {
+		return new TransitionScheduler(MIN_DECAY, MAX_DECAY, SLOTS, recorder);
+	}
+	
+	// Runs every deadline until there's nothing left, returning the time
+	private static long settle(TransitionScheduler scheduler, long now) {
+		long deadline;
+		while ((deadline = scheduler.getNextDeadline()) != TransitionScheduler.NO_DEADLINE) {
+			now = Math.max(now, deadline);
+			scheduler.update(now);
+		}
+		
+		assertTrue(scheduler.isSettled());
+		return now;
+	}
+	
+	/*** Order ***/
+	
+	@Test
+	public void toggleWaitsForTheDecaysBeforeIt() {
+		Recorder recorder = new Recorder();
+		TransitionScheduler scheduler = create(recorder);
+		
+		scheduler.decay(0);
+		scheduler.decay(10);
+		scheduler.decay(20);
+		scheduler.toggleDisplay(30);
+		settle(scheduler, 30);
+		
+		assertEquals(list("drop 1", "drop 2", "drop 3", "display false"), recorder.events);
+	}
+	
+	@Test
+	public void decaysAfterAToggleWaitForIt() {
+		Recorder recorder = new Recorder();
+		TransitionScheduler scheduler = create(recorder);
+		
+		scheduler.decay(0);
+		scheduler.toggleDisplay(10);
+		scheduler.decay(20);
+		scheduler.decay(30);
+		settle(scheduler, 30);
+		
+		assertEquals(list("drop 1", "display false", "drop 2", "drop 3"), recorder.events);
+	}
+	
+	@Test
+	public void revertsAndTogglesKeepTheirPlace() {
+		Recorder recorder = new Recorder();
+		TransitionScheduler scheduler = create(recorder);
+		
+		// The second decay is still waiting out the stagger when the revert
+		// arrives, so the two cancel, but nothing crosses a toggle
+		scheduler.decay(0);
+		scheduler.decay(0);
+		scheduler.revert(0);
+		scheduler.toggleDisplay(0);
+		scheduler.revert(0);
+		scheduler.toggleDisplay(0);
+		settle(scheduler, 0);
+		
+		assertEquals(list("drop 1", "display false", "revert 0", "display true"), recorder.events);
+	}
+	
+	@Test
+	public void doubleToggleWithNothingBetweenCancels() {
+		Recorder recorder = new Recorder();
+		TransitionScheduler scheduler = create(recorder);
+		
+		scheduler.decay(0);
+		scheduler.toggleDisplay(10);
+		scheduler.toggleDisplay(20);
+		settle(scheduler, 20);
+		
+		assertEquals(list("drop 1"), recorder.events);
+		assertTrue(scheduler.getDisplay());
+	}
+	
+	/*** Convergence ***/
+	
+	@Test
+	public void anyBurstConvergesOnTheLastCommand() {
+		Random random = new Random(42L);
+		
+		for (int run = 0; run < 500; run++) {
+			Recorder recorder = new Recorder();
+			TransitionScheduler scheduler = create(recorder);
+			
+			// Model the commands as given, clamped like the scheduler
+			int expectedDecay = MIN_DECAY;
+			boolean expectedDisplay = true;
+			int toggles = 0;
+			
+			long now = 0;
+			int commands = 1 + random.nextInt(40);
+			for (int i = 0; i < commands; i++) {
+				now += random.nextInt(400);
+				scheduler.update(now);
+				
+				switch (random.nextInt(3)) {
+				case 0:
+					scheduler.decay(now);
+					expectedDecay = Math.min(expectedDecay + 1, MAX_DECAY);
+					break;
+				case 1:
+					scheduler.revert(now);
+					expectedDecay = Math.max(expectedDecay - 1, MIN_DECAY);
+					break;
+				default:
+					scheduler.toggleDisplay(now);
+					expectedDisplay = !expectedDisplay;
+					toggles++;
+					break;
+				}
+				
+				assertEquals(expectedDecay, scheduler.getTargetDecay());
+				assertEquals(expectedDisplay, scheduler.getTargetDisplay());
+			}
+			
+			settle(scheduler, now);
+			
+			assertEquals(expectedDecay, scheduler.getDecay());
+			assertEquals(expectedDecay, recorder.decay);
+			assertEquals(expectedDisplay, scheduler.getDisplay());
+			assertEquals(expectedDisplay, recorder.display);
+			assertEquals(0, recorder.inFlight);
+			assertTrue(count(recorder.events, "display") <= toggles);
+		}
+	}
+	
+	@Test
+	public void decayStopsAtTheMaximum() {
+		Recorder recorder = new Recorder();
+		TransitionScheduler scheduler = create(recorder);
+		
+		for (int i = 0; i < MAX_DECAY + 5; i++) {
+			scheduler.decay(0);
+		}
+		settle(scheduler, 0);
+		
+		assertEquals(MAX_DECAY, scheduler.getDecay());
+		assertEquals(MAX_DECAY, count(recorder.events, "drop"));
+	}
+	
+	/*** Compression ***/
+	
+	@Test
+	public void dropsOverlapAndShortenWithABacklog() {
+		Recorder recorder = new Recorder();
+		TransitionScheduler scheduler = create(recorder);
+		scheduler.setTimings(3000, 750, 250);
+		
+		// The first decay drops at once, with nothing behind it yet
+		scheduler.decay(0);
+		for (int i = 1; i < 8; i++) {
+			scheduler.decay(0);
+		}
+		assertEquals(1, scheduler.getDropsInFlight());
+		
+		// The rest are staggered, filling every slot
+		scheduler.update(250);
+		scheduler.update(500);
+		scheduler.update(750);
+		assertEquals(SLOTS, scheduler.getDropsInFlight());
+		
+		long end = settle(scheduler, 750);
+		
+		// Each drop is shortened by the backlog behind it, down to the floor
+		List<Long> expected = new ArrayList<Long>();
+		for (long duration : new long[] { 3000, 750, 750, 750, 750, 1000, 1500, 3000 }) {
+			expected.add(duration);
+		}
+		assertEquals(expected, recorder.durations);
+		
+		// Well before eight full drops one after another
+		assertTrue("Took " + end + "ms", end < 8 * 3000 / 2);
+	}
+	
+	@Test
+	public void aSingleDropTakesTheFullTime() {
+		Recorder recorder = new Recorder();
+		TransitionScheduler scheduler = create(recorder);
+		scheduler.setTimings(3000, 750, 250);
+		
+		scheduler.decay(100);
+		assertEquals(3100L, scheduler.getNextDeadline());
+		
+		scheduler.update(3099);
+		assertEquals(1, scheduler.getDropsInFlight());
+		scheduler.update(3100);
+		assertTrue(scheduler.isSettled());
+		assertEquals(TransitionScheduler.NO_DEADLINE, scheduler.getNextDeadline());
+	}
+	
+	@Test
+	public void sameCommandsAtTheSameTimesGiveTheSameTransitions() {
+		Recorder first = new Recorder();
+		Recorder second = new Recorder();
+		play(create(first));
+		play(create(second));
+		
+		assertEquals(first.events, second.events);
+		assertEquals(first.durations, second.durations);
+	}
+	
+	private static void play(TransitionScheduler scheduler) {
+		long[] times = { 0, 5, 90, 400, 410, 1200, 1300, 1301 };
+		for (int i = 0; i < times.length; i++) {
+			scheduler.update(times[i]);
+			if (i % 3 == 2) {
+				scheduler.toggleDisplay(times[i]);
+			} else {
+				scheduler.decay(times[i]);
+			}
+		}
+		settle(scheduler, times[times.length - 1]);
+	}
+	
+	/*** Utilities ***/
+	
+	private static List<String> list(String... events) {
+		List<String> list = new ArrayList<String>();
+		for (String event : events) list.add(event);
+		return list;
+	}
+	
+	private static int count(List<String> events, String prefix) {
+		int count = 0;
+		for (String event : events) {
+			if (event.startsWith(prefix)) count++;
+		}
+		return count;
+	}
+}
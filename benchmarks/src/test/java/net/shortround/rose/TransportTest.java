@@ -0,0 +1,217 @@
+package net.shortround.rose;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * The transports driven as the activity drives them, with commands going
+ * through the same framing the remotes' bytes do on a device.
+ */
+public class TransportTest {
+	// How long to wait for anything the selector thread does
+	private static final long TIMEOUT_MILLIS = 5000;
+	
+	/**
+	 * Records every event, from whichever thread it arrives on.
+	 */
+	private static class RecordingListener implements Transport.Listener {
+		final BlockingQueue<Integer> states = new LinkedBlockingQueue<Integer>();
+		final BlockingQueue<int[]> commands = new LinkedBlockingQueue<int[]>();
+		final BlockingQueue<Integer> connected = new LinkedBlockingQueue<Integer>();
+		final BlockingQueue<Integer> lost = new LinkedBlockingQueue<Integer>();
+		
+		public void onStateChanged(int state) {
+			states.add(state);
+		}
+		
+		public void onConnected(int clientId) {
+			connected.add(clientId);
+		}
+		
+		public void onCommand(int clientId, int opcode, int sequence) {
+			commands.add(new int[] { clientId, opcode, sequence });
+		}
+		
+		public void onConnectionLost(int clientId) {
+			lost.add(clientId);
+		}
+		
+		int[] nextCommand() throws InterruptedException {
+			int[] command = commands.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			assertNotNull("No command arrived", command);
+			return command;
+		}
+		
+		void awaitState(int state) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+			while (true) {
+				long wait = deadline - System.currentTimeMillis();
+				Integer next = wait > 0 ? states.poll(wait, TimeUnit.MILLISECONDS) : null;
+				assertNotNull("Never reached state " + state, next);
+				if (next == state) return;
+			}
+		}
+	}
+	
+	/*** Loopback ***/
+	
+	@Test
+	public void loopbackFramesSplitAndJoinedCommands() throws Exception {
+		LoopbackTransport transport = new LoopbackTransport();
+		RecordingListener listener = new RecordingListener();
+		transport.setListener(listener);
+		transport.start();
+		
+		final List<byte[]> received = new ArrayList<byte[]>();
+		LoopbackTransport.Client client = transport.connect(new LoopbackTransport.Receiver() {
+			public void onReceive(byte[] data) {
+				received.add(data);
+			}
+		});
+		assertEquals(Transport.STATE_CONNECTED, transport.getState());
+		
+		// Text split across sends and run together, then a binary frame
+		client.send("dec".getBytes());
+		client.send("aydisp".getBytes());
+		client.send("lay\nrevert".getBytes());
+		client.send(RoseProtocol.encode(RoseProtocol.OP_DATA, 42));
+		
+		int[][] expected = {
+			{ RoseProtocol.OP_DECAY, 0 },
+			{ RoseProtocol.OP_DISPLAY, 0 },
+			{ RoseProtocol.OP_REVERT, 0 },
+			{ RoseProtocol.OP_DATA, 42 }
+		};
+		for (int[] command : expected) {
+			int[] actual = listener.nextCommand();
+			assertEquals(client.getClientId(), actual[0]);
+			assertEquals(command[0], actual[1]);
+			assertEquals(command[1], actual[2]);
+		}
+		
+		// Keepalives are answered by the transport and go no further
+		client.send(RoseProtocol.encode(RoseProtocol.OP_PING, 7));
+		assertTrue(listener.commands.isEmpty());
+		assertArrayEquals(RoseProtocol.encode(RoseProtocol.OP_PONG, 7), received.get(received.size() - 1));
+		
+		client.close();
+		assertEquals(client.getClientId(), (int) listener.lost.poll());
+		assertEquals(Transport.STATE_LISTEN, transport.getState());
+		
+		transport.stop();
+		assertEquals(Transport.STATE_NONE, transport.getState());
+	}
+	
+	@Test
+	public void loopbackBroadcastsEachRemotesEncoding() {
+		LoopbackTransport transport = new LoopbackTransport();
+		transport.start();
+		
+		final List<byte[]> textRemote = new ArrayList<byte[]>();
+		final List<byte[]> binaryRemote = new ArrayList<byte[]>();
+		transport.connect(new LoopbackTransport.Receiver() {
+			public void onReceive(byte[] data) {
+				textRemote.add(data);
+			}
+		});
+		LoopbackTransport.Client binary = transport.connect(new LoopbackTransport.Receiver() {
+			public void onReceive(byte[] data) {
+				binaryRemote.add(data);
+			}
+		});
+		transport.setBinaryProtocol(binary.getClientId());
+		
+		byte[] binaryState = RoseProtocol.encodeState(1, 3, 14, 80, true);
+		byte[] textState = "{}".getBytes();
+		transport.broadcast(binaryState, textState);
+		
+		assertEquals(1, transport.getClientCount(true));
+		assertEquals(1, transport.getClientCount(false));
+		assertArrayEquals(textState, textRemote.get(0));
+		assertArrayEquals(binaryState, binaryRemote.get(0));
+	}
+	
+	/*** TCP ***/
+	
+	@Test
+	public void tcpBacksOffWhileThePortIsTakenAndRecovers() throws Exception {
+		// Hold the port so the transport can't have it
+		ServerSocket blocker = new ServerSocket();
+		blocker.bind(new InetSocketAddress(0));
+		int port = blocker.getLocalPort();
+		
+		TcpTransport transport = new TcpTransport(port);
+		RecordingListener listener = new RecordingListener();
+		transport.setListener(listener);
+		
+		try {
+			// A taken port backs off instead of throwing
+			transport.start();
+			assertEquals(Transport.STATE_BACKOFF, transport.getState());
+			listener.awaitState(Transport.STATE_BACKOFF);
+			
+			// Free the port and the selector thread listens on its own
+			blocker.close();
+			listener.awaitState(Transport.STATE_LISTEN);
+			
+			// And serves a remote
+			Socket socket = new Socket("localhost", port);
+			try {
+				OutputStream out = socket.getOutputStream();
+				out.write("decay".getBytes());
+				out.flush();
+				
+				int[] command = listener.nextCommand();
+				assertEquals(RoseProtocol.OP_DECAY, command[1]);
+				assertEquals(Transport.STATE_CONNECTED, transport.getState());
+			} finally {
+				socket.close();
+			}
+		} finally {
+			blocker.close();
+			transport.stop();
+		}
+		
+		assertEquals(Transport.STATE_NONE, transport.getState());
+	}
+	
+	@Test
+	public void tcpRestartsAfterStop() throws Exception {
+		TcpTransport transport = new TcpTransport(0);
+		RecordingListener listener = new RecordingListener();
+		transport.setListener(listener);
+		
+		for (int i = 0; i < 3; i++) {
+			transport.start();
+			assertEquals(Transport.STATE_LISTEN, transport.getState());
+			
+			Socket socket = new Socket("localhost", transport.getPort());
+			try {
+				socket.getOutputStream().write(RoseProtocol.encode(RoseProtocol.OP_REVERT, i));
+				
+				int[] command = listener.nextCommand();
+				assertEquals(RoseProtocol.OP_REVERT, command[1]);
+				assertEquals(i, command[2]);
+			} finally {
+				socket.close();
+			}
+			
+			transport.stop();
+			assertEquals(Transport.STATE_NONE, transport.getState());
+		}
+	}
+}
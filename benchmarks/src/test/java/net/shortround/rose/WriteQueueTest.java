@@ -0,0 +1,118 @@
+package net.shortround.rose;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The write policies as the transports use them. Writes come from the UI
+ * thread, so none of them may keep the caller waiting on a full queue.
+ */
+public class WriteQueueTest {
+	private static final int CAPACITY = 4;
+	private static final long TIMEOUT_MILLIS = 100;
+	
+	private static byte[][] fill(WriteQueue queue, int count, int policy) {
+		byte[][] writes = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			writes[i] = new byte[] { (byte) i };
+			queue.offer(writes[i], policy, TIMEOUT_MILLIS);
+		}
+		
+		return writes;
+	}
+	
+	@Test
+	public void dropOldestMakesRoom() {
+		TransportMetrics metrics = new TransportMetrics();
+		WriteQueue queue = new WriteQueue(CAPACITY, metrics);
+		byte[][] writes = fill(queue, CAPACITY + 2, Transport.WRITE_DROP_OLDEST);
+		
+		assertEquals(2, metrics.getDroppedWrites());
+		for (int i = 2; i < writes.length; i++) assertSame(writes[i], queue.poll());
+		assertNull(queue.poll());
+	}
+	
+	@Test
+	public void dropNewestKeepsTheQueue() {
+		TransportMetrics metrics = new TransportMetrics();
+		WriteQueue queue = new WriteQueue(CAPACITY, metrics);
+		byte[][] writes = fill(queue, CAPACITY, Transport.WRITE_DROP_NEWEST);
+		
+		assertFalse(queue.offer(new byte[1], Transport.WRITE_DROP_NEWEST, TIMEOUT_MILLIS));
+		assertEquals(1, metrics.getDroppedWrites());
+		for (int i = 0; i < writes.length; i++) assertSame(writes[i], queue.poll());
+	}
+	
+	@Test
+	public void blockNeverWaitsOnAFullQueue() {
+		TransportMetrics metrics = new TransportMetrics();
+		WriteQueue queue = new WriteQueue(CAPACITY, metrics);
+		fill(queue, CAPACITY, Transport.WRITE_BLOCK);
+		
+		// A second queue's worth is held without the caller waiting out the timeout
+		long start = System.nanoTime();
+		byte[][] held = fill(queue, CAPACITY, Transport.WRITE_BLOCK);
+		long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+		
+		assertTrue("Waited " + elapsedMillis + " ms", elapsedMillis < TIMEOUT_MILLIS);
+		assertEquals(0, metrics.getDroppedWrites());
+		assertEquals(CAPACITY * 2, queue.size());
+		
+		// Beyond that the new write goes
+		assertFalse(queue.offer(new byte[1], Transport.WRITE_BLOCK, TIMEOUT_MILLIS));
+		assertEquals(1, metrics.getDroppedWrites());
+		
+		// And the held writes come out behind the queued ones
+		for (int i = 0; i < CAPACITY; i++) queue.poll();
+		for (int i = 0; i < CAPACITY; i++) assertSame(held[i], queue.poll());
+	}
+	
+	@Test
+	public void heldWritesFollowInOrderAsRoomFrees() {
+		TransportMetrics metrics = new TransportMetrics();
+		WriteQueue queue = new WriteQueue(CAPACITY, metrics);
+		byte[][] writes = fill(queue, CAPACITY * 2, Transport.WRITE_BLOCK);
+		
+		// A new write may not overtake the held ones once there's room
+		assertSame(writes[0], queue.poll());
+		byte[] late = new byte[1];
+		queue.offer(late, Transport.WRITE_BLOCK, TIMEOUT_MILLIS);
+		
+		for (int i = 1; i < writes.length; i++) assertSame(writes[i], queue.poll());
+		assertSame(late, queue.poll());
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+		assertEquals(0, metrics.getDroppedWrites());
+	}
+	
+	@Test
+	public void heldWritesAreDroppedAfterTheTimeout() throws Exception {
+		TransportMetrics metrics = new TransportMetrics();
+		WriteQueue queue = new WriteQueue(CAPACITY, metrics);
+		byte[][] writes = fill(queue, CAPACITY * 2, Transport.WRITE_BLOCK);
+		
+		// The link stalls for longer than the timeout
+		Thread.sleep(TIMEOUT_MILLIS * 2);
+		
+		for (int i = 0; i < CAPACITY; i++) assertSame(writes[i], queue.poll());
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+		assertEquals(CAPACITY, metrics.getDroppedWrites());
+	}
+	
+	@Test
+	public void clearDropsHeldWrites() {
+		WriteQueue queue = new WriteQueue(CAPACITY, new TransportMetrics());
+		fill(queue, CAPACITY * 2, Transport.WRITE_BLOCK);
+		
+		queue.clear();
+		assertTrue(queue.isEmpty());
+		assertEquals(0, queue.size());
+		assertNull(queue.poll());
+	}
+}
@@ -0,0 +1,106 @@
+package net.shortround.rose;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Debug aid that counts the objects allocated by the calling thread during
+ * one frame of a hot path on the device. The draw and step paths are
+ * expected to allocate nothing once they are warmed up; any allocation
+ * outside a grace period is logged, and in strict mode it throws. The
+ * particle step and snapshot reads are also held to zero bytes off the
+ * device, by ParticleSystemAllocationTest in the benchmarks module.
+ */
+public class AllocationChecker {
+	// Debug
+	private static final String TAG = "AllocationChecker";
+	
+	// Global switches
+	private static volatile boolean enabled = false;
+	private static volatile boolean strict = false;
+	
+	private final String name;
+	
+	// Statistics
+	private volatile long frames;
+	private volatile long violations;
+	
+	// Frames still allowed to allocate, e.g. while layers are rebuilt
+	private volatile int graceFrames;
+	
+	public AllocationChecker(String name) {
+		this.name = name;
+	}
+	
+	/*** Switches ***/
+	
+	public static synchronized void setEnabled(boolean value) {
+		if (value == enabled) return;
+		
+		if (value) {
+			Debug.startAllocCounting();
+		} else {
+			Debug.stopAllocCounting();
+		}
+		
+		enabled = value;
+	}
+	
+	public static boolean isEnabled() {
+		return enabled;
+	}
+	
+	public static void setStrict(boolean value) {
+		strict = value;
+	}
+	
+	/*** Checking ***/
+	
+	/**
+	 * Returns the calling thread's allocation count, to be handed to end().
+	 */
+	public int begin() {
+		return enabled ? Debug.getThreadAllocCount() : 0;
+	}
+	
+	public void end(int start) {
+		if (!enabled) return;
+		
+		int count = Debug.getThreadAllocCount() - start;
+		frames++;
+		
+		// Warm up frames may allocate
+		if (graceFrames > 0) {
+			graceFrames--;
+			return;
+		}
+		
+		if (count > 0) {
+			violations++;
+			
+			String message = name + " allocated " + count + " objects in one frame";
+			if (strict) {
+				throw new IllegalStateException(message);
+			}
+			
+			Log.w(TAG, message);
+		}
+	}
+	
+	/**
+	 * Lets the next few frames allocate without being reported.
+	 */
+	public void allowAllocations(int frameCount) {
+		graceFrames = frameCount;
+	}
+	
+	/*** Properties ***/
+	
+	public long getFrames() {
+		return frames;
+	}
+	
+	public long getViolations() {
+		return violations;
+	}
+}
@@ -0,0 +1,236 @@
+package net.shortround.rose;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Decoded rose images, already sized to the current scale. Each frame is
+ * decoded at most once per scale and kept in a FrameCache, least recently
+ * used and bounded by a byte budget. The decay levels next to the current
+ * one can be decoded ahead of time on a background thread, which is started
+ * when first needed and let go by release().
+ */
+public class BitmapCache {
+	// Debug
+	private static final String TAG = "BitmapCache";
+	
+	// Kinds of image, used to build cache keys
+	private static final int KIND_STEM = 0;
+	private static final int KIND_PETALS = 1;
+	private static final int KIND_SINGLE_PETAL = 2;
+	
+	// Instrumentation
+	private static final Metrics.Histogram DECODE = Metrics.histogram("bitmap.decode");
+	private static final Metrics.Counter HITS = Metrics.counter("bitmap.hits");
+	private static final Metrics.Counter MISSES = Metrics.counter("bitmap.misses");
+	
+	private final Resources resources;
+	private final int[] petalIds;
+	private final int[] stemIds;
+	
+	private final FrameCache<Bitmap> cache;
+	private final Paint scalePaint;
+	
+	// Started on the first preload, guarded by this
+	private ExecutorService preloader;
+	
+	private volatile float scale;
+	
+	public BitmapCache(Resources resources) {
+		// Use an eighth of the heap, as the platform guidelines suggest
+		this(resources, (int) (Runtime.getRuntime().maxMemory() / 8));
+	}
+	
+	public BitmapCache(Resources resources, int maxBytes) {
+		this.resources = resources;
+		
+		// Resolve the resource ids once
+		petalIds = getResourceIds(R.array.petals);
+		stemIds = getResourceIds(R.array.stems);
+		
+		// Build the cache, measured in bytes
+		cache = new FrameCache<Bitmap>(maxBytes, new FrameCache.Sizer<Bitmap>() {
+			public int sizeOf(Bitmap value) {
+				return value.getRowBytes() * value.getHeight();
+			}
+		});
+		
+		scalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		scale = 1.0f;
+	}
+	
+	/*** Lookups ***/
+	
+	public Bitmap getPetals(int decay) {
+		return get(KIND_PETALS, decay);
+	}
+	
+	public Bitmap getSinglePetal() {
+		return get(KIND_SINGLE_PETAL, 0);
+	}
+	
+	public Bitmap getStem(int decay) {
+		return get(KIND_STEM, decay);
+	}
+	
+	private Bitmap get(int kind, int decay) {
+		Bitmap bitmap = cache.get(kind, decay);
+		if (bitmap == null) {
+			MISSES.increment();
+			
+			float decodeScale = scale;
+			long start = Metrics.start();
+			bitmap = decode(kind, decay, decodeScale);
+			DECODE.recordSince(start);
+			
+			// Don't keep anything decoded for a scale that has since changed
+			if (bitmap != null && decodeScale == scale) {
+				cache.put(kind, decay, bitmap);
+			}
+		} else {
+			HITS.increment();
+		}
+		
+		return bitmap;
+	}
+	
+	/**
+	 * Decodes the stem and petals either side of the given decay in the
+	 * background, so the next decay or revert finds them ready.
+	 */
+	public synchronized void preloadNeighbours(final int decay) {
+		if (preloader == null) preloader = createPreloader();
+		
+		try {
+			preloader.execute(new Runnable() {
+				public void run() {
+					for (int level = decay - 1; level <= decay + 1; level++) {
+						if (level < 0 || level >= petalIds.length) continue;
+						
+						get(KIND_STEM, level);
+						get(KIND_PETALS, level);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Log.w(TAG, "Preloader is shutting down", e);
+		}
+	}
+	
+	private ExecutorService createPreloader() {
+		// Decode ahead on a single low priority thread
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				Thread thread = new Thread(new Runnable() {
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						runnable.run();
+					}
+				}, "BitmapPreloader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Stops the preloader thread and drops every decoded image. The cache
+	 * still works afterwards, decoding and preloading again as needed.
+	 */
+	public synchronized void release() {
+		if (preloader != null) {
+			preloader.shutdownNow();
+			preloader = null;
+		}
+		
+		cache.evictAll();
+	}
+	
+	public void setScale(float value) {
+		if (value == scale) return;
+		
+		// Everything cached was sized for the old scale
+		scale = value;
+		cache.evictAll();
+	}
+	
+	/*** Decoding ***/
+	
+	private Bitmap decode(int kind, int decay, float scale) {
+		int id;
+		switch (kind) {
+		case KIND_STEM:
+			id = stemIds[decay];
+			break;
+		case KIND_PETALS:
+			id = petalIds[decay];
+			break;
+		default:
+			id = R.drawable.petal;
+			break;
+		}
+		
+		// Find the source size, in the image's own pixels like ROSE_WIDTH and ROSE_HEIGHT
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inScaled = false;
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeResource(resources, id, options);
+		
+		int width = Math.max(1, Math.round(options.outWidth * scale));
+		int height = Math.max(1, Math.round(options.outHeight * scale));
+		
+		// Subsample while the result is still at least as big as needed
+		int sampleSize = 1;
+		while (options.outWidth / (sampleSize * 2) >= width && options.outHeight / (sampleSize * 2) >= height) {
+			sampleSize *= 2;
+		}
+		
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		
+		Bitmap source = BitmapFactory.decodeResource(resources, id, options);
+		if (source == null) {
+			Log.e(TAG, "Failed to decode " + id);
+			return null;
+		}
+		
+		// The stem is the bottom layer, so flatten it onto the black background
+		Bitmap.Config config = kind == KIND_STEM ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+		
+		Bitmap scaled = Bitmap.createBitmap(width, height, config);
+		Canvas canvas = new Canvas(scaled);
+		if (kind == KIND_STEM) canvas.drawColor(Color.BLACK);
+		canvas.scale((float) width / source.getWidth(), (float) height / source.getHeight());
+		canvas.drawBitmap(source, 0, 0, scalePaint);
+		
+		source.recycle();
+		
+		return scaled;
+	}
+	
+	private int[] getResourceIds(int arrayId) {
+		TypedArray array = resources.obtainTypedArray(arrayId);
+		
+		int[] ids = new int[array.length()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = array.getResourceId(i, 0);
+		}
+		
+		array.recycle();
+		
+		return ids;
+	}
+}
@@ -4,17 +4,23 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 
-public class BluetoothService {
+public class BluetoothService implements Transport {
 	// Debugging
 	private static final String TAG = "BluetoothService";
 	private static final boolean D = true;
@@ -25,106 +31,313 @@ public class BluetoothService {
 	
 	// Member fields
 	private final BluetoothAdapter adapter;
-	private final Handler handler;
+	private volatile Listener listener;
 	private AcceptThread acceptThread;
-	private ConnectedThread connectedThread;
-	private int state;
+	private ExecutorService executor;
+	private final CopyOnWriteArrayList<Connection> connections;
+	private final AtomicInteger nextClientId;
+	private final ConnectionStateMachine stateMachine;
 	
-	// Constants that indicate the current connection state
-	public static final int STATE_NONE = 0;       // Doing nothing
-	public static final int STATE_LISTEN = 1;     // Listening for a connection
-	public static final int STATE_CONNECTING = 2; // Initiating an outgoing connection
-	public static final int STATE_CONNECTED = 3;  // Connected to a remote device
+	// Re-listening and heartbeats
+	private ScheduledExecutorService scheduler;
+	private long lostNanos;
 	
-	public BluetoothService(Context context, Handler handler) {
+	// Remotes served at once, each needs a reader and at times a writer
+	public static final int MAX_CLIENTS = 4;
+	
+	// Binary remotes are pinged this often, and dropped after this long silent
+	public static final long HEARTBEAT_INTERVAL_MILLIS = 1000;
+	public static final long HEARTBEAT_TIMEOUT_MILLIS = 3500;
+	
+	// Keep client ids small enough to share a message argument
+	private static final int CLIENT_ID_MASK = 0x7FFF;
+	
+	// Write queue settings
+	private volatile int writePolicy = WRITE_DROP_OLDEST;
+	private volatile long writeTimeoutMillis = 100;
+	
+	// Write statistics
+	private final TransportMetrics metrics;
+	
+	public BluetoothService(Context context) {
 		if (D) Log.d(TAG, "New Bluetooth Service");
 		
 		adapter = BluetoothAdapter.getDefaultAdapter();
-		state = STATE_NONE;
-		this.handler = handler;
+		metrics = new TransportMetrics();
+		
+		connections = new CopyOnWriteArrayList<Connection>();
+		nextClientId = new AtomicInteger();
+		
+		stateMachine = new ConnectionStateMachine(new ConnectionStateMachine.Listener() {
+			public void onStateChanged(int oldState, int newState) {
+				if (D) Log.d(TAG, "setState() " + oldState + " -> " + newState);
+				
+				// Tell the listener the state has changed
+				Listener l = listener;
+				if (l != null) l.onStateChanged(newState);
+			}
+		});
 	}
 	
-	private synchronized void setState(int value) {
-		if (D) Log.d(TAG, "setState() " + state + " -> " + value);
-		state = value;
-		
-		// Tell the handle the state has changed
-		handler.obtainMessage(RoseActivity.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+	private void setState(int value) {
+		if (!stateMachine.transition(value)) {
+			Log.e(TAG, "Illegal state change " + stateMachine.getState() + " -> " + value);
+		}
 	}
 	
-	public synchronized int getState() {
-		return state;
+	public void setListener(Listener value) {
+		listener = value;
+	}
+	
+	public int getState() {
+		return stateMachine.getState();
 	}
 	
 	public synchronized void start() {
 		if (D) Log.d(TAG, "start");
 		
-		// Cancel any existing connected thread
-		if (connectedThread != null) { connectedThread.cancel(); connectedThread = null; }
+		// Cancel any existing connections
+		cancelConnections();
 		
-		setState(STATE_LISTEN);
+		// Readers and writers share a small pool
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(MAX_CLIENTS * 2, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "BluetoothWorker-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
 		
-		// Start the accept thread
-		if (acceptThread == null) {
-			acceptThread = new AcceptThread();
-			acceptThread.start();
+		// Re-listening and heartbeats run on one timer thread
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "BluetoothTimer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			scheduler.scheduleAtFixedRate(heartbeat, HEARTBEAT_INTERVAL_MILLIS, HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
 		}
+		
+		stateMachine.resetBackoff();
+		lostNanos = System.nanoTime();
+		
+		// Listen afresh, unless still waiting out a failure
+		if (getState() == STATE_NONE || acceptThread != null) setState(STATE_LISTEN);
+		listen();
 	}
 	
-	public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
-		if (D) Log.d(TAG, "connected");
+	/*** Listening ***/
+	
+	// Starts the accept thread, or backs off if the adapter won't listen
+	private synchronized void listen() {
+		if (getState() == STATE_NONE || acceptThread != null) return;
 		
-		// Cancel any connected threads
-		if (connectedThread != null) { connectedThread.cancel(); connectedThread = null; }
+		AcceptThread thread = new AcceptThread();
+		if (!thread.isListening()) {
+			relistenLater();
+			return;
+		}
 		
-		// Cancel the accept thread because we don't need it any more
-		if (acceptThread != null) { acceptThread.cancel(); acceptThread = null; }
+		acceptThread = thread;
+		acceptThread.start();
 		
-		// Start the connected thread
-		connectedThread = new ConnectedThread(socket);
-		connectedThread.start();
+		// Listening works again, so start over with short waits
+		stateMachine.resetBackoff();
+		if (connections.isEmpty()) setState(STATE_LISTEN);
+	}
+	
+	private synchronized void relistenLater() {
+		if (scheduler == null) return;
+		
+		if (connections.isEmpty()) setState(STATE_BACKOFF);
+		
+		long backoffMillis = stateMachine.nextBackoffMillis();
+		if (D) Log.d(TAG, "listening again in " + backoffMillis + "ms");
+		scheduler.schedule(relisten, backoffMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	private synchronized void acceptFailed(AcceptThread thread) {
+		// Only the current accept thread counts, a cancelled one is expected to fail
+		if (thread != acceptThread) return;
+		
+		acceptThread = null;
+		relistenLater();
+	}
+	
+	private final Runnable relisten = new Runnable() {
+		public void run() {
+			listen();
+		}
+	};
+	
+	public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
+		if (D) Log.d(TAG, "connected " + device);
+		
+		// Keep accepting, the accept thread carries on for the next remote
+		Connection connection = new Connection(nextClientId.incrementAndGet() & CLIENT_ID_MASK, socket);
+		connections.add(connection);
+		executor.execute(connection);
+		
+		// Time how long we went without a remote
+		if (lostNanos != 0) {
+			metrics.recordReconnect(System.nanoTime() - lostNanos);
+			lostNanos = 0;
+		}
 		
 		setState(STATE_CONNECTED);
+		
+		// Let the remote have the state straight away
+		Listener l = listener;
+		if (l != null) l.onConnected(connection.clientId);
 	}
 	
 	public synchronized void stop() {
 		if (D) Log.d(TAG, "stop");
 		
-		// Cancel connected thread
-		if (connectedThread != null) { connectedThread.cancel(); connectedThread = null; }
+		// Cancel connections
+		cancelConnections();
 		
 		// Cancel the accept thread
 		if (acceptThread != null) { acceptThread.cancel(); acceptThread = null; }
 		
+		// Let the pool's and the timer's threads go
+		if (executor != null) { executor.shutdownNow(); executor = null; }
+		if (scheduler != null) { scheduler.shutdownNow(); scheduler = null; }
+		
 		setState(STATE_NONE);
 	}
 	
+	/*** Writing ***/
+	
 	public void write(byte[] out) {
-		// Create a temporary connected thread
-		ConnectedThread r;
+		for (Connection connection : connections) {
+			connection.enqueue(out);
+		}
+	}
+	
+	public void write(int clientId, byte[] out) {
+		Connection connection = getConnection(clientId);
+		if (connection != null) connection.enqueue(out);
+	}
+	
+	public void broadcast(byte[] binary, byte[] text) {
+		for (Connection connection : connections) {
+			byte[] out = connection.binaryProtocol ? binary : text;
+			if (out != null) connection.enqueue(out);
+		}
+	}
+	
+	public void setWritePolicy(int policy, long timeoutMillis) {
+		writePolicy = policy;
+		writeTimeoutMillis = timeoutMillis;
+	}
+	
+	/*** Clients ***/
+	
+	public void setBinaryProtocol(int clientId) {
+		Connection connection = getConnection(clientId);
+		if (connection != null) connection.binaryProtocol = true;
+	}
+	
+	public boolean isBinaryProtocol(int clientId) {
+		Connection connection = getConnection(clientId);
+		return connection != null && connection.binaryProtocol;
+	}
+	
+	public int getClientCount() {
+		return connections.size();
+	}
+	
+	public int getClientCount(boolean binaryProtocol) {
+		int count = 0;
+		for (Connection connection : connections) {
+			if (connection.binaryProtocol == binaryProtocol) count++;
+		}
 		
-		// Retrieve the thread
-		synchronized(this) {
-			if (state != STATE_CONNECTED) return;
-			r = connectedThread;
+		return count;
+	}
+	
+	private Connection getConnection(int clientId) {
+		for (Connection connection : connections) {
+			if (connection.clientId == clientId) return connection;
 		}
 		
-		// Perform the write
-		r.write(out);
+		return null;
+	}
+	
+	private void cancelConnections() {
+		for (Connection connection : connections) {
+			connection.cancel();
+		}
+		connections.clear();
 	}
 	
-	private void connectionLost() {
-		Log.e(TAG, "Connection lost");
+	private void connectionLost(Connection connection) {
+		synchronized (this) {
+			// The reader and the heartbeat can both notice, only act once
+			if (!connections.remove(connection)) return;
+			
+			Log.e(TAG, "Connection lost " + connection.clientId);
+			connection.cancel();
+			metrics.recordConnectionLost();
+			
+			// Go back to listening once the last remote has gone
+			if (connections.isEmpty()) {
+				lostNanos = System.nanoTime();
+				setState(acceptThread != null ? STATE_LISTEN : STATE_BACKOFF);
+			}
+		}
 		
-		Message message = handler.obtainMessage(RoseActivity.MESSAGE_FAILURE);
-		handler.sendMessage(message);
+		Listener l = listener;
+		if (l != null) l.onConnectionLost(connection.clientId);
+	}
+	
+	/*** Heartbeats ***/
+	
+	private final Runnable heartbeat = new Runnable() {
+		public void run() {
+			long now = System.nanoTime();
+			
+			for (Connection connection : connections) {
+				// Text remotes can't answer a ping, so only a failed read drops them
+				if (!connection.binaryProtocol) continue;
+				
+				long silentMillis = (now - connection.lastReceivedNanos) / 1000000L;
+				if (silentMillis > HEARTBEAT_TIMEOUT_MILLIS) {
+					metrics.recordHeartbeatTimeout();
+					connectionLost(connection);
+				} else {
+					connection.enqueue(RoseProtocol.encode(RoseProtocol.OP_PING, 0));
+				}
+			}
+		}
+	};
+	
+	/*** Write Statistics ***/
+	
+	public int getQueueDepth() {
+		int depth = 0;
+		for (Connection connection : connections) {
+			depth += connection.queue.size();
+		}
 		
-		BluetoothService.this.start();
+		return depth;
+	}
+	
+	public TransportMetrics getMetrics() {
+		return metrics;
 	}
 	
 	private class AcceptThread extends Thread {
 		// The local server socket
 		private final BluetoothServerSocket serverSocket;
+		private volatile boolean running;
 		
 		public AcceptThread() {
 			BluetoothServerSocket tmp = null;
@@ -137,6 +350,11 @@ public class BluetoothService {
 			}
 			
 			serverSocket = tmp;
+			running = tmp != null;
+		}
+		
+		public boolean isListening() {
+			return serverSocket != null;
 		}
 		
 		public void run() {
@@ -145,33 +363,31 @@ public class BluetoothService {
 			
 			BluetoothSocket socket = null;
 			
-			// Listen to the server socket if we're not connected
-			while (state != STATE_CONNECTED) {
+			// Keep listening to the server socket until cancelled
+			while (running) {
 				try {
 					socket = serverSocket.accept();
 				} catch (IOException e) {
-					Log.e(TAG, "accept() failed", e);
+					if (running) {
+						Log.e(TAG, "accept() failed", e);
+						acceptFailed(this);
+					}
 					break;
 				}
 				
 				// If a connection was accepted
 				if (socket != null) {
 					synchronized (BluetoothService.this) {
-						switch (state) {
-						case STATE_LISTEN:
-						case STATE_CONNECTING:
-							// Start the connected thread
+						if (running && connections.size() < MAX_CLIENTS) {
+							// Serve the new remote
 							connected(socket, socket.getRemoteDevice());
-							break;
-						case STATE_NONE:
-						case STATE_CONNECTED:
-							// Either not ready or already connected. Terminate the socket
+						} else {
+							// Either not ready or full. Terminate the socket
 							try {
 								socket.close();
 							} catch (IOException e) {
 								Log.e(TAG, "Could not close unwanted socket", e);
 							}
-							break;
 						}
 					}
 				}
@@ -182,6 +398,9 @@ public class BluetoothService {
 		
 		public void cancel() {
 			if (D) Log.d(TAG, "cancel " + this);
+			running = false;
+			if (serverSocket == null) return;
+			
 			try {
 				serverSocket.close();
 			} catch (IOException e) {
@@ -190,13 +409,35 @@ public class BluetoothService {
 		}
 	}
 	
-	private class ConnectedThread extends Thread {
+	/**
+	 * One connected remote. Reading runs as a task on the pool for as long
+	 * as the remote is connected; writing runs as a task only while there's
+	 * something queued.
+	 */
+	private class Connection implements Runnable, StreamFramer.Listener {
+		private final int clientId;
 		private final InputStream inputStream;
 		private final OutputStream outputStream;
 		private final BluetoothSocket socket;
+		private final StreamFramer framer;
+		
+		// Pending writes, drained by at most one task at a time
+		private final WriteQueue queue;
+		private final AtomicBoolean draining;
+		
+		private volatile boolean binaryProtocol;
+		private volatile boolean running;
+		private volatile long lastReceivedNanos;
 		
-		public ConnectedThread(BluetoothSocket socket) {
-			Log.d(TAG, "create ConnectedThread");
+		private final Runnable drain = new Runnable() {
+			public void run() {
+				drainWrites();
+			}
+		};
+		
+		public Connection(int clientId, BluetoothSocket socket) {
+			Log.d(TAG, "create Connection " + clientId);
+			this.clientId = clientId;
 			this.socket = socket;
 			
 			InputStream tmpIn = null;
@@ -212,40 +453,103 @@ public class BluetoothService {
 			
 			inputStream = tmpIn;
 			outputStream = tmpOut;
+			
+			// Commands are reassembled here, on the reading thread
+			framer = new StreamFramer();
+			
+			queue = new WriteQueue(metrics);
+			draining = new AtomicBoolean();
+			
+			// Every remote starts out on the text protocol
+			binaryProtocol = false;
+			running = true;
+			lastReceivedNanos = System.nanoTime();
 		}
 		
 		public void run() {
-			Log.i(TAG, "BEGIN connectedThread");
-			byte[] buffer = new byte[1024];
-			int bytes;
+			Log.i(TAG, "BEGIN connection " + clientId);
 			
 			// Keep listening to the InputStream while connected
-			while (true) {
+			while (running) {
 				try {
-					// Read from the InputStream
-					bytes = socket.getInputStream().read(buffer);
-
-					handler.obtainMessage(RoseActivity.MESSAGE_READ, bytes, -1, buffer).sendToTarget();
+					// Read from the InputStream and pass on every whole command
+					if (framer.read(inputStream) < 0) throw new IOException("End of stream");
+					lastReceivedNanos = System.nanoTime();
+					framer.drain(this);
 				} catch (IOException e) {
-					Log.e(TAG, "disconnected", e);
-					connectionLost();
-					BluetoothService.this.start();
+					if (running) {
+						Log.e(TAG, "disconnected", e);
+						connectionLost(this);
+					}
 					break;
 				}
 			}
+			
+			Log.i(TAG, "END connection " + clientId);
 		}
 		
-		public void write(byte[] buffer) {
-			try {
-				socket.getOutputStream().write(buffer);
+		public void onCommand(int opcode, int sequence) {
+			// Keepalives are answered here and go no further
+			if (opcode == RoseProtocol.OP_PING) {
+				enqueue(RoseProtocol.encode(RoseProtocol.OP_PONG, sequence));
+				return;
+			}
+			if (opcode == RoseProtocol.OP_PONG) return;
+			
+			Listener l = listener;
+			if (l != null) l.onCommand(clientId, opcode, sequence);
+		}
+		
+		/*** Writing ***/
+		
+		public void enqueue(byte[] buffer) {
+			if (!running) return;
+			
+			queue.offer(buffer, writePolicy, writeTimeoutMillis);
+			
+			scheduleDrain();
+		}
+		
+		private void scheduleDrain() {
+			// Only one drain task per remote, so writes stay in order
+			if (queue.isEmpty() || !draining.compareAndSet(false, true)) return;
+			
+			ExecutorService pool = executor;
+			if (pool == null || pool.isShutdown()) {
+				draining.set(false);
+				return;
+			}
+			
+			pool.execute(drain);
+		}
+		
+		private void drainWrites() {
+			byte[] buffer;
+			while (running && (buffer = queue.poll()) != null) {
+				// Time the write itself, that's what stalls on a bad link
+				long start = System.nanoTime();
+				try {
+					outputStream.write(buffer);
+				} catch (IOException e) {
+					// The reading side notices the lost connection
+					Log.e(TAG, "Exception during write", e);
+					continue;
+				}
+				long elapsed = System.nanoTime() - start;
 				
-				handler.obtainMessage(RoseActivity.MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
-			} catch (IOException e) {
-				Log.e(TAG, "Exception during write", e);
+				metrics.recordWrite(elapsed);
 			}
+			
+			// Pick up anything queued while we were finishing
+			draining.set(false);
+			if (running) scheduleDrain();
 		}
 		
 		public void cancel() {
+			// Anything still queued was meant for this connection only
+			running = false;
+			queue.clear();
+			
 			try {
 				socket.close();
 			} catch (IOException e) {
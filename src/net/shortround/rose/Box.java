@@ -0,0 +1,39 @@
+package net.shortround.rose;
+
+/**
+ * A plain rectangle, standing in for RectF in code that has to run off the
+ * device. Like RectF the edges are public and top is above bottom.
+ */
+public class Box {
+	public float left;
+	public float top;
+	public float right;
+	public float bottom;
+	
+	public Box() {
+	}
+	
+	public Box(float left, float top, float right, float bottom) {
+		set(left, top, right, bottom);
+	}
+	
+	public void set(float left, float top, float right, float bottom) {
+		this.left = left;
+		this.top = top;
+		this.right = right;
+		this.bottom = bottom;
+	}
+	
+	public float width() {
+		return right - left;
+	}
+	
+	public float height() {
+		return bottom - top;
+	}
+	
+	@Override
+	public String toString() {
+		return "Box(" + left + ", " + top + ", " + right + ", " + bottom + ")";
+	}
+}
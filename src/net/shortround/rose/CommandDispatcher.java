@@ -0,0 +1,78 @@
+package net.shortround.rose;
+
+/**
+ * Turns framed commands into calls on a handler, one method for each thing
+ * a remote can ask for. It is the step between the framer and the scene,
+ * kept free of Android so the whole path can be measured on a plain JVM.
+ */
+public class CommandDispatcher {
+	/**
+	 * Carries out commands, on whichever thread calls dispatch().
+	 */
+	public interface Handler {
+		// The remote speaks the binary protocol
+		public void onHello(int clientId, int sequence);
+		
+		public void onDecay(int sequence);
+		public void onRevert(int sequence);
+		public void onDisplay(int sequence);
+		
+		// The remote wants the current state
+		public void onData(int sequence);
+		
+		// The remote wants the metrics, switched on or off first if it asked
+		public void onStats(int clientId, int sequence);
+		
+		public void onTrace();
+		public void onTrajectory();
+	}
+	
+	private final Handler handler;
+	
+	public CommandDispatcher(Handler handler) {
+		this.handler = handler;
+	}
+	
+	/**
+	 * Hands one command to the handler, returning false if the opcode isn't
+	 * one a remote may send.
+	 */
+	public boolean dispatch(int opcode, int clientId, int sequence) {
+		switch (opcode) {
+		case RoseProtocol.OP_HELLO:
+			handler.onHello(clientId, sequence);
+			return true;
+		case RoseProtocol.OP_DECAY:
+			handler.onDecay(sequence);
+			return true;
+		case RoseProtocol.OP_REVERT:
+			handler.onRevert(sequence);
+			return true;
+		case RoseProtocol.OP_DISPLAY:
+			handler.onDisplay(sequence);
+			return true;
+		case RoseProtocol.OP_DATA:
+			handler.onData(sequence);
+			return true;
+		case RoseProtocol.OP_STATS:
+			handler.onStats(clientId, sequence);
+			return true;
+		case RoseProtocol.OP_ENABLE_STATS:
+			Metrics.setEnabled(true);
+			handler.onStats(clientId, sequence);
+			return true;
+		case RoseProtocol.OP_DISABLE_STATS:
+			Metrics.setEnabled(false);
+			handler.onStats(clientId, sequence);
+			return true;
+		case RoseProtocol.OP_TRACE:
+			handler.onTrace();
+			return true;
+		case RoseProtocol.OP_TRAJECTORY:
+			handler.onTrajectory();
+			return true;
+		default:
+			return false;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package net.shortround.rose;
+
+/**
+ * The connection state of a transport, with the transitions it's allowed
+ * to make. Every change goes through transition(), so a state can't be
+ * skipped or reached from the wrong place by two threads racing.
+ *
+ *   NONE -> LISTEN               started
+ *   LISTEN -> CONNECTED          first remote connected
+ *   LISTEN -> BACKOFF            listening failed, waiting to try again
+ *   CONNECTED -> LISTEN          last remote gone, still listening
+ *   CONNECTED -> BACKOFF         last remote gone, not listening
+ *   BACKOFF -> LISTEN            listening again
+ *   BACKOFF -> CONNECTED         a remote connected while backing off
+ *   any -> NONE                  stopped
+ *
+ * It also keeps the wait before listening again after a failure, which
+ * doubles with every failure up to a maximum and starts over once
+ * listening works.
+ */
+public class ConnectionStateMachine {
+	// Waits before listening again after a failure, doubling each time
+	public static final long MIN_BACKOFF_MILLIS = 250;
+	public static final long MAX_BACKOFF_MILLIS = 8000;
+	
+	/**
+	 * Told about every change, while the machine's lock is held.
+	 */
+	public interface Listener {
+		public void onStateChanged(int oldState, int newState);
+	}
+	
+	private final Listener listener;
+	private int state;
+	private long backoffMillis;
+	
+	public ConnectionStateMachine(Listener listener) {
+		this.listener = listener;
+		state = Transport.STATE_NONE;
+		backoffMillis = MIN_BACKOFF_MILLIS;
+	}
+	
+	/**
+	 * Moves to the given state, returning false and staying put if that
+	 * isn't allowed from the current one. Moving to the current state is
+	 * allowed and does nothing.
+	 */
+	public synchronized boolean transition(int value) {
+		if (value == state) return true;
+		if (!isAllowed(state, value)) return false;
+		
+		int old = state;
+		state = value;
+		listener.onStateChanged(old, value);
+		
+		return true;
+	}
+	
+	public synchronized int getState() {
+		return state;
+	}
+	
+	/*** Backoff ***/
+	
+	/**
+	 * Returns how long to wait before listening again after a failure, and
+	 * doubles the wait for the next failure.
+	 */
+	public synchronized long nextBackoffMillis() {
+		long wait = backoffMillis;
+		backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+		
+		return wait;
+	}
+	
+	/**
+	 * Starts over with short waits, once listening works again.
+	 */
+	public synchronized void resetBackoff() {
+		backoffMillis = MIN_BACKOFF_MILLIS;
+	}
+	
+	public static boolean isAllowed(int from, int to) {
+		if (to == Transport.STATE_NONE) return true;
+		
+		switch (from) {
+		case Transport.STATE_NONE:
+			return to == Transport.STATE_LISTEN;
+		case Transport.STATE_LISTEN:
+			return to == Transport.STATE_CONNECTED || to == Transport.STATE_BACKOFF;
+		case Transport.STATE_CONNECTED:
+			return to == Transport.STATE_LISTEN || to == Transport.STATE_BACKOFF;
+		case Transport.STATE_BACKOFF:
+			return to == Transport.STATE_LISTEN || to == Transport.STATE_CONNECTED;
+		default:
+			return false;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package net.shortround.rose;
+
+/**
+ * Shared easing curves. Curves that are cheap to compute, like the
+ * decelerate polynomial, are computed directly. Trig curves are sampled
+ * once, when the class loads, into a fixed resolution lookup table. After
+ * that every call is a table lookup with linear interpolation between
+ * neighbouring samples. Either way the shared instances hold no mutable
+ * state, so they can be used from any thread.
+ */
+public abstract class Easing {
+	// Number of intervals in every table
+	private static final int RESOLUTION = 256;
+	
+	/**
+	 * Same curve as android.view.animation.DecelerateInterpolator. A table
+	 * lookup costs more than the two multiplies, so this one is computed.
+	 */
+	public static final Easing DECELERATE = new Easing() {
+		public float getInterpolation(float input) {
+			if (input <= 0.0f) return 0.0f;
+			if (input >= 1.0f) return 1.0f;
+			
+			float remaining = 1.0f - input;
+			return 1.0f - remaining * remaining;
+		}
+	};
+	
+	/**
+	 * Same curve as android.view.animation.AccelerateDecelerateInterpolator.
+	 */
+	public static final Easing ACCELERATE_DECELERATE = new Table(new Curve() {
+		public double evaluate(double input) {
+			return Math.cos((input + 1.0) * Math.PI) / 2.0 + 0.5;
+		}
+	});
+	
+	private Easing() {
+	}
+	
+	public abstract float getInterpolation(float input);
+	
+	/*** Lookup Table ***/
+	
+	private static final class Table extends Easing {
+		private final float[] table;
+		
+		private Table(Curve curve) {
+			// Sample both ends and every interval in between
+			table = new float[RESOLUTION + 1];
+			for (int i = 0; i <= RESOLUTION; i++) {
+				table[i] = (float) curve.evaluate((double) i / RESOLUTION);
+			}
+		}
+		
+		public float getInterpolation(float input) {
+			// Clamp to the ends of the table
+			if (input <= 0.0f) return table[0];
+			if (input >= 1.0f) return table[RESOLUTION];
+			
+			// Interpolate between the two surrounding samples
+			float position = input * RESOLUTION;
+			int index = (int) position;
+			float fraction = position - index;
+			
+			return table[index] + (table[index + 1] - table[index]) * fraction;
+		}
+	}
+	
+	private interface Curve {
+		public double evaluate(double input);
+	}
+}
@@ -0,0 +1,85 @@
+package net.shortround.rose;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used store of decoded frames, bounded by a byte budget.
+ * Frames are found by their kind and decay level, packed into one small int
+ * key that the platform's Integer cache covers, so a hit allocates nothing.
+ * It knows nothing about how frames are decoded or drawn; BitmapCache puts
+ * the Android decoding in front of it, and the benchmarks use it as it is.
+ */
+public class FrameCache<V> {
+	// Keys are kind * KEY_STRIDE + decay, small enough to avoid boxing
+	public static final int KEY_STRIDE = 32;
+	
+	/**
+	 * Measures a frame against the budget.
+	 */
+	public interface Sizer<V> {
+		public int sizeOf(V value);
+	}
+	
+	private final LinkedHashMap<Integer, V> frames;
+	private final Sizer<V> sizer;
+	private final int maxBytes;
+	private int bytes;
+	
+	public FrameCache(int maxBytes, Sizer<V> sizer) {
+		// Access order, so iteration starts at the least recently used
+		frames = new LinkedHashMap<Integer, V>(16, 0.75f, true);
+		this.sizer = sizer;
+		this.maxBytes = maxBytes;
+	}
+	
+	public static int key(int kind, int decay) {
+		return kind * KEY_STRIDE + decay;
+	}
+	
+	/*** Lookups ***/
+	
+	/**
+	 * Returns the frame, marking it the most recently used, or null if it
+	 * isn't here.
+	 */
+	public synchronized V get(int kind, int decay) {
+		return frames.get(key(kind, decay));
+	}
+	
+	/**
+	 * Keeps a frame, replacing any older one, then drops the least recently
+	 * used frames until the budget is met again.
+	 */
+	public synchronized void put(int kind, int decay, V value) {
+		V old = frames.put(key(kind, decay), value);
+		if (old != null) bytes -= sizer.sizeOf(old);
+		bytes += sizer.sizeOf(value);
+		
+		Iterator<Map.Entry<Integer, V>> iterator = frames.entrySet().iterator();
+		while (bytes > maxBytes && iterator.hasNext()) {
+			bytes -= sizer.sizeOf(iterator.next().getValue());
+			iterator.remove();
+		}
+	}
+	
+	public synchronized void evictAll() {
+		frames.clear();
+		bytes = 0;
+	}
+	
+	/*** Properties ***/
+	
+	public synchronized int size() {
+		return frames.size();
+	}
+	
+	public synchronized int getBytes() {
+		return bytes;
+	}
+	
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+}
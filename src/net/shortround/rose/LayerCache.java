@@ -0,0 +1,114 @@
+package net.shortround.rose;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.util.Log;
+
+/**
+ * The static parts of the rose, composed once per decay level and screen
+ * size. The background layer is the stem already placed on the black
+ * background at full screen size, and the petal layer is the scaled petals
+ * with their position worked out, so drawing either is a single blit with no
+ * transform. Layers are rebuilt lazily on the drawing thread.
+ */
+public class LayerCache {
+	// Debug
+	private static final String TAG = "LayerCache";
+	
+	private final BitmapCache bitmapCache;
+	
+	// Stem on black, covering the whole screen
+	private Bitmap background;
+	private Canvas backgroundCanvas;
+	private int backgroundDecay;
+	
+	// Petals and where they sit on screen
+	private Bitmap petals;
+	private int petalsDecay;
+	private int petalsWidth;
+	private int petalsHeight;
+	private float petalsLeft;
+	private float petalsTop;
+	
+	// Set when the images are rescaled
+	private volatile boolean stale;
+	
+	public LayerCache(BitmapCache bitmapCache) {
+		this.bitmapCache = bitmapCache;
+		
+		backgroundCanvas = new Canvas();
+		backgroundDecay = -1;
+		petalsDecay = -1;
+		stale = false;
+	}
+	
+	/*** Drawing ***/
+	
+	public void drawBackground(Canvas canvas, int decay) {
+		int width = canvas.getWidth();
+		int height = canvas.getHeight();
+		
+		// Only rebuild when the decay or the screen changes
+		if (stale) {
+			stale = false;
+			backgroundDecay = -1;
+			petalsDecay = -1;
+		}
+		
+		if (background == null || background.getWidth() != width || background.getHeight() != height) {
+			background = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+			backgroundCanvas.setBitmap(background);
+			backgroundDecay = -1;
+		}
+		
+		if (backgroundDecay != decay) {
+			Bitmap stem = bitmapCache.getStem(decay);
+			
+			backgroundCanvas.drawColor(Color.BLACK);
+			if (stem != null) {
+				backgroundCanvas.drawBitmap(stem, (width - stem.getWidth()) / 2, height - stem.getHeight(), null);
+			} else {
+				Log.d(TAG, "Null stem!");
+			}
+			
+			backgroundDecay = decay;
+		}
+		
+		canvas.drawBitmap(background, 0, 0, null);
+	}
+	
+	public void drawPetals(Canvas canvas, int decay) {
+		int width = canvas.getWidth();
+		int height = canvas.getHeight();
+		
+		// Only look the petals up again when the decay or the screen changes
+		if (petalsDecay != decay || petalsWidth != width || petalsHeight != height) {
+			petals = bitmapCache.getPetals(decay);
+			
+			if (petals != null) {
+				petalsLeft = (width - petals.getWidth()) / 2;
+				petalsTop = height - petals.getHeight();
+			} else {
+				Log.d(TAG, "Null petals!");
+			}
+			
+			petalsDecay = decay;
+			petalsWidth = width;
+			petalsHeight = height;
+		}
+		
+		if (petals != null) {
+			canvas.drawBitmap(petals, petalsLeft, petalsTop, null);
+		}
+	}
+	
+	/*** Invalidation ***/
+	
+	/**
+	 * Marks every layer for rebuilding, called when the images are rescaled.
+	 */
+	public void invalidate() {
+		stale = true;
+	}
+}
@@ -0,0 +1,210 @@
+package net.shortround.rose;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in-process transport. Remotes are plain objects that push bytes in
+ * and get writes handed straight back, so the protocol code can be driven
+ * at full speed without a socket. Commands are delivered on the sending
+ * thread and writes on the writing thread; nothing is ever queued, so the
+ * write policy has no effect.
+ */
+public class LoopbackTransport implements Transport {
+	// Keep client ids small enough to share a message argument
+	private static final int CLIENT_ID_MASK = 0x7FFF;
+	
+	/**
+	 * Receives everything written to one remote.
+	 */
+	public interface Receiver {
+		public void onReceive(byte[] data);
+	}
+	
+	private final CopyOnWriteArrayList<Client> clients;
+	private final TransportMetrics metrics;
+	
+	private volatile Listener listener;
+	private volatile int state;
+	private int nextClientId;
+	
+	public LoopbackTransport() {
+		clients = new CopyOnWriteArrayList<Client>();
+		metrics = new TransportMetrics();
+		state = STATE_NONE;
+	}
+	
+	private void setState(int value) {
+		state = value;
+		
+		// Tell the listener the state has changed
+		Listener l = listener;
+		if (l != null) l.onStateChanged(value);
+	}
+	
+	public void setListener(Listener value) {
+		listener = value;
+	}
+	
+	public int getState() {
+		return state;
+	}
+	
+	public synchronized void start() {
+		if (state == STATE_NONE) setState(STATE_LISTEN);
+	}
+	
+	public synchronized void stop() {
+		clients.clear();
+		setState(STATE_NONE);
+	}
+	
+	/**
+	 * Connects a new remote, which receives writes through the receiver.
+	 */
+	public synchronized Client connect(Receiver receiver) {
+		if (state == STATE_NONE) throw new IllegalStateException("Transport not started");
+		
+		nextClientId = (nextClientId + 1) & CLIENT_ID_MASK;
+		Client client = new Client(nextClientId, receiver);
+		clients.add(client);
+		
+		if (state != STATE_CONNECTED) setState(STATE_CONNECTED);
+		
+		// Let the remote have the state straight away
+		Listener l = listener;
+		if (l != null) l.onConnected(client.clientId);
+		
+		return client;
+	}
+	
+	private synchronized void disconnect(Client client) {
+		if (!clients.remove(client)) return;
+		
+		Listener l = listener;
+		if (l != null) l.onConnectionLost(client.clientId);
+		
+		// Go back to listening once the last remote has gone
+		if (clients.isEmpty() && state == STATE_CONNECTED) setState(STATE_LISTEN);
+	}
+	
+	/*** Writing ***/
+	
+	public void write(byte[] out) {
+		for (Client client : clients) {
+			client.deliver(out);
+		}
+	}
+	
+	public void write(int clientId, byte[] out) {
+		Client client = getClient(clientId);
+		if (client != null) client.deliver(out);
+	}
+	
+	public void broadcast(byte[] binary, byte[] text) {
+		for (Client client : clients) {
+			byte[] out = client.binaryProtocol ? binary : text;
+			if (out != null) client.deliver(out);
+		}
+	}
+	
+	public void setWritePolicy(int policy, long timeoutMillis) {
+		// Writes are never queued
+	}
+	
+	/*** Clients ***/
+	
+	public void setBinaryProtocol(int clientId) {
+		Client client = getClient(clientId);
+		if (client != null) client.binaryProtocol = true;
+	}
+	
+	public boolean isBinaryProtocol(int clientId) {
+		Client client = getClient(clientId);
+		return client != null && client.binaryProtocol;
+	}
+	
+	public int getClientCount() {
+		return clients.size();
+	}
+	
+	public int getClientCount(boolean binaryProtocol) {
+		int count = 0;
+		for (Client client : clients) {
+			if (client.binaryProtocol == binaryProtocol) count++;
+		}
+		
+		return count;
+	}
+	
+	public TransportMetrics getMetrics() {
+		return metrics;
+	}
+	
+	private Client getClient(int clientId) {
+		for (Client client : clients) {
+			if (client.clientId == clientId) return client;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * The remote end of one loopback connection.
+	 */
+	public class Client implements StreamFramer.Listener {
+		private final int clientId;
+		private final Receiver receiver;
+		private final StreamFramer framer;
+		
+		private volatile boolean binaryProtocol;
+		
+		private Client(int clientId, Receiver receiver) {
+			this.clientId = clientId;
+			this.receiver = receiver;
+			
+			framer = new StreamFramer();
+			
+			// Every remote starts out on the text protocol
+			binaryProtocol = false;
+		}
+		
+		/**
+		 * Sends bytes as the remote, in chunks of any size. Every command
+		 * they complete reaches the listener before this returns.
+		 */
+		public synchronized void send(byte[] buffer, int offset, int length) {
+			framer.write(buffer, offset, length);
+			framer.drain(this);
+		}
+		
+		public void send(byte[] buffer) {
+			send(buffer, 0, buffer.length);
+		}
+		
+		public void onCommand(int opcode, int sequence) {
+			// Keepalives are answered here and go no further
+			if (opcode == RoseProtocol.OP_PING) {
+				deliver(RoseProtocol.encode(RoseProtocol.OP_PONG, sequence));
+				return;
+			}
+			if (opcode == RoseProtocol.OP_PONG) return;
+			
+			Listener l = listener;
+			if (l != null) l.onCommand(clientId, opcode, sequence);
+		}
+		
+		private void deliver(byte[] data) {
+			long start = System.nanoTime();
+			receiver.onReceive(data);
+			metrics.recordWrite(System.nanoTime() - start);
+		}
+		
+		public int getClientId() {
+			return clientId;
+		}
+		
+		public void close() {
+			disconnect(this);
+		}
+	}
+}
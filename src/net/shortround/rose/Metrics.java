@@ -0,0 +1,309 @@
+package net.shortround.rose;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Process wide counters, gauges and latency histograms for the hot paths.
+ * Metrics are registered once, usually into static fields, and recording
+ * into them takes no locks and allocates nothing. Everything can be switched
+ * off at runtime, leaving a single volatile read per recording.
+ */
+public final class Metrics {
+	// Global switch
+	private static volatile boolean enabled = true;
+	
+	// Registered metrics, in registration order
+	private static final CopyOnWriteArrayList<Metric> registry = new CopyOnWriteArrayList<Metric>();
+	
+	private Metrics() {
+	}
+	
+	/*** Switches ***/
+	
+	public static void setEnabled(boolean value) {
+		enabled = value;
+	}
+	
+	public static boolean isEnabled() {
+		return enabled;
+	}
+	
+	/*** Registration ***/
+	
+	public static Counter counter(String name) {
+		return register(new Counter(name));
+	}
+	
+	public static Gauge gauge(String name) {
+		return register(new Gauge(name));
+	}
+	
+	public static Histogram histogram(String name) {
+		return register(new Histogram(name));
+	}
+	
+	private static synchronized <T extends Metric> T register(T metric) {
+		// Registering twice hands back the first one
+		for (Metric existing : registry) {
+			if (existing.getName().equals(metric.getName()) && existing.getClass() == metric.getClass()) {
+				@SuppressWarnings("unchecked")
+				T same = (T) existing;
+				return same;
+			}
+		}
+		
+		registry.add(metric);
+		return metric;
+	}
+	
+	/*** Timing ***/
+	
+	/**
+	 * Returns a start time for Histogram.recordSince(), or 0 when metrics are
+	 * off so that the matching recording is skipped.
+	 */
+	public static long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+	
+	/*** Reporting ***/
+	
+	/**
+	 * Every metric by name. Latencies are reported in microseconds.
+	 */
+	public static JSONObject toJson() throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("enabled", enabled);
+		
+		for (Metric metric : registry) {
+			json.put(metric.getName(), metric.toJson());
+		}
+		
+		return json;
+	}
+	
+	public static void reset() {
+		for (Metric metric : registry) {
+			metric.reset();
+		}
+	}
+	
+	public abstract static class Metric {
+		private final String name;
+		
+		Metric(String name) {
+			this.name = name;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		abstract Object toJson() throws JSONException;
+		abstract void reset();
+	}
+	
+	/**
+	 * A count that only goes up, such as cache misses.
+	 */
+	public static final class Counter extends Metric {
+		private final AtomicLong count = new AtomicLong();
+		
+		Counter(String name) {
+			super(name);
+		}
+		
+		public void increment() {
+			if (enabled) count.incrementAndGet();
+		}
+		
+		public void add(long value) {
+			if (enabled) count.addAndGet(value);
+		}
+		
+		public long get() {
+			return count.get();
+		}
+		
+		Object toJson() {
+			return count.get();
+		}
+		
+		void reset() {
+			count.set(0);
+		}
+	}
+	
+	/**
+	 * The latest value of something, such as the number of live particles.
+	 */
+	public static final class Gauge extends Metric {
+		private final AtomicLong value = new AtomicLong();
+		
+		Gauge(String name) {
+			super(name);
+		}
+		
+		public void set(long value) {
+			if (enabled) this.value.set(value);
+		}
+		
+		/**
+		 * Raises the gauge to the given value, keeping a high water mark such
+		 * as the deepest a queue has been.
+		 */
+		public void setMax(long value) {
+			if (!enabled) return;
+			
+			long current = this.value.get();
+			while (value > current && !this.value.compareAndSet(current, value)) {
+				current = this.value.get();
+			}
+		}
+		
+		public long get() {
+			return value.get();
+		}
+		
+		Object toJson() {
+			return value.get();
+		}
+		
+		void reset() {
+			value.set(0);
+		}
+	}
+	
+	/**
+	 * Latencies in nanoseconds, bucketed log-linearly like an HDR histogram:
+	 * each power of two is split into SUB_BUCKETS linear buckets, so any
+	 * percentile is accurate to within an eighth of its value, from 1ns up
+	 * to about 17 seconds.
+	 */
+	public static final class Histogram extends Metric {
+		// Bits of linear precision within each power of two
+		private static final int SUB_BUCKET_BITS = 3;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		
+		// Powers of two covered, anything longer lands in the last bucket
+		private static final int MAGNITUDES = 34 - SUB_BUCKET_BITS;
+		private static final int BUCKETS = (MAGNITUDES + 1) * SUB_BUCKETS;
+		
+		private final AtomicLongArray buckets;
+		private final AtomicLong count;
+		private final AtomicLong total;
+		private final AtomicLong max;
+		
+		Histogram(String name) {
+			super(name);
+			buckets = new AtomicLongArray(BUCKETS);
+			count = new AtomicLong();
+			total = new AtomicLong();
+			max = new AtomicLong();
+		}
+		
+		/*** Recording ***/
+		
+		public void record(long nanos) {
+			if (!enabled || nanos < 0) return;
+			
+			buckets.incrementAndGet(getBucket(nanos));
+			count.incrementAndGet();
+			total.addAndGet(nanos);
+			
+			// Raise the maximum unless another thread beat us to it
+			long current;
+			while (nanos > (current = max.get())) {
+				if (max.compareAndSet(current, nanos)) break;
+			}
+		}
+		
+		/**
+		 * Records the time since a start from Metrics.start(), if it was taken
+		 * while metrics were on.
+		 */
+		public void recordSince(long start) {
+			if (start != 0) record(System.nanoTime() - start);
+		}
+		
+		/*** Querying ***/
+		
+		public long getCount() {
+			return count.get();
+		}
+		
+		public long getMean() {
+			long n = count.get();
+			return n > 0 ? total.get() / n : 0;
+		}
+		
+		public long getMax() {
+			return max.get();
+		}
+		
+		/**
+		 * The value at or below which the given fraction of recordings fall,
+		 * as the top of its bucket.
+		 */
+		public long getPercentile(double fraction) {
+			long n = count.get();
+			if (n == 0) return 0;
+			
+			long target = (long) Math.ceil(n * fraction);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= target) return Math.min(getBucketTop(i), max.get());
+			}
+			
+			return max.get();
+		}
+		
+		Object toJson() throws JSONException {
+			JSONObject json = new JSONObject();
+			json.put("count", getCount());
+			json.put("mean_us", getMean() / 1000.0);
+			json.put("p50_us", getPercentile(0.50) / 1000.0);
+			json.put("p99_us", getPercentile(0.99) / 1000.0);
+			json.put("max_us", getMax() / 1000.0);
+			
+			return json;
+		}
+		
+		void reset() {
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets.set(i, 0);
+			}
+			count.set(0);
+			total.set(0);
+			max.set(0);
+		}
+		
+		/*** Buckets ***/
+		
+		private static int getBucket(long value) {
+			// Small values are counted exactly
+			if (value < SUB_BUCKETS) return (int) value;
+			
+			// Which power of two, then which slice of it
+			int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+			if (magnitude >= MAGNITUDES) return BUCKETS - 1;
+			
+			int subBucket = (int) (value >>> magnitude) - SUB_BUCKETS;
+			return (magnitude + 1) * SUB_BUCKETS + subBucket;
+		}
+		
+		private static long getBucketTop(int bucket) {
+			if (bucket < SUB_BUCKETS) return bucket;
+			
+			int magnitude = bucket / SUB_BUCKETS - 1;
+			int subBucket = bucket % SUB_BUCKETS;
+			return ((long) (SUB_BUCKETS + subBucket + 1) << magnitude) - 1;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package net.shortround.rose;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks how much particle work the device can afford. Draw and step costs
+ * are measured as they happen, and every window the average cost of a frame
+ * is compared with a target. The budget moves down a level quickly when
+ * frames run over and up a level slowly when there's plenty of room, and
+ * after every change it sits out a particle lifetime while the particles
+ * catch up with the new budget, so it settles instead of oscillating. Each
+ * level sets the particle count, how many particles spawn per step and how
+ * often the simulation steps.
+ *
+ * The budget keeps no clock of its own. update() takes the current time in
+ * nanoseconds from any origin, so the same costs at the same times always
+ * give the same levels.
+ */
+public class ParticleBudget {
+	// Levels, from the cheapest to the richest
+	private static final int[] PARTICLES = { 5, 10, 20, 40, 80, 120, 200 };
+	private static final int[] SPAWN_RATES = { 1, 1, 1, 2, 2, 3, 4 };
+	private static final int[] STEP_MILLIS = { 100, 50, 50, 33, 33, 25, 16 };
+	
+	// The level every device starts at, as the rose always used to run
+	public static final int DEFAULT_LEVEL = 1;
+	
+	// Enough particles for the richest level
+	public static final int MAX_PARTICLES = 200;
+	
+	// Default frame cost to hold, half a 60Hz frame
+	public static final long DEFAULT_TARGET_NANOS = 8000000L;
+	
+	// Hysteresis, in windows: down after a second, up after three seconds
+	// well under, then six seconds to settle
+	public static final long WINDOW_NANOS = 500000000L;
+	public static final int DOWN_WINDOWS = 2;
+	public static final int UP_WINDOWS = 6;
+	public static final float UP_FRACTION = 0.6f;
+	public static final int SETTLE_WINDOWS = 12;
+	
+	// Instrumentation
+	private static final Metrics.Gauge LEVEL = Metrics.gauge("budget.level");
+	private static final Metrics.Gauge PARTICLE_BUDGET = Metrics.gauge("budget.particles");
+	private static final Metrics.Gauge STEP_BUDGET = Metrics.gauge("budget.step_ms");
+	private static final Metrics.Gauge FRAME_COST = Metrics.gauge("budget.frame_us");
+	private static final Metrics.Counter CHANGES = Metrics.counter("budget.changes");
+	
+	// Costs since the window began, from any thread
+	private final AtomicLong drawNanos;
+	private final AtomicLong drawCount;
+	private final AtomicLong stepNanos;
+	
+	// Owned by the thread calling update()
+	private long targetNanos;
+	private boolean started;
+	private long windowStart;
+	private int overWindows;
+	private int underWindows;
+	private int settleWindows;
+	
+	private volatile int level;
+	
+	public ParticleBudget() {
+		this(DEFAULT_TARGET_NANOS);
+	}
+	
+	public ParticleBudget(long targetNanos) {
+		this.targetNanos = targetNanos;
+		
+		drawNanos = new AtomicLong();
+		drawCount = new AtomicLong();
+		stepNanos = new AtomicLong();
+		level = DEFAULT_LEVEL;
+		publish();
+	}
+	
+	/*** Measuring ***/
+	
+	public void recordDraw(long nanos) {
+		drawNanos.addAndGet(nanos);
+		drawCount.incrementAndGet();
+	}
+	
+	public void recordStep(long nanos) {
+		stepNanos.addAndGet(nanos);
+	}
+	
+	/*** Deciding ***/
+	
+	/**
+	 * Closes the window if it's over and moves the budget if the costs call
+	 * for it. Returns true if the level changed. Only one thread may call
+	 * this, normally the one that steps the particles.
+	 */
+	public boolean update(long now) {
+		// The first call opens the first window, whatever the clock reads
+		if (!started) {
+			started = true;
+			windowStart = now;
+		}
+		if (now - windowStart < WINDOW_NANOS) return false;
+		windowStart = now;
+		
+		// Average cost of a frame, counting the steps that fed it
+		long frames = drawCount.getAndSet(0);
+		long draws = drawNanos.getAndSet(0);
+		long steps = stepNanos.getAndSet(0);
+		if (frames == 0) return false;
+		
+		// Give the particles time to follow the last change
+		if (settleWindows > 0) {
+			settleWindows--;
+			return false;
+		}
+		
+		long cost = (draws + steps) / frames;
+		FRAME_COST.set(cost / 1000);
+		
+		// Count how long we've been over or well under the target
+		if (cost > targetNanos) {
+			overWindows++;
+			underWindows = 0;
+		} else if (cost < targetNanos * UP_FRACTION) {
+			underWindows++;
+			overWindows = 0;
+		} else {
+			overWindows = 0;
+			underWindows = 0;
+		}
+		
+		if (overWindows >= DOWN_WINDOWS && level > 0) return setLevel(level - 1);
+		if (underWindows >= UP_WINDOWS && level < PARTICLES.length - 1) return setLevel(level + 1);
+		
+		return false;
+	}
+	
+	private boolean setLevel(int value) {
+		level = value;
+		
+		// Start counting afresh at the new level
+		overWindows = 0;
+		underWindows = 0;
+		settleWindows = SETTLE_WINDOWS;
+		
+		publish();
+		CHANGES.increment();
+		return true;
+	}
+	
+	private void publish() {
+		LEVEL.set(level);
+		PARTICLE_BUDGET.set(PARTICLES[level]);
+		STEP_BUDGET.set(STEP_MILLIS[level]);
+	}
+	
+	/*** Properties ***/
+	
+	public int getLevel() {
+		return level;
+	}
+	
+	public int getParticles() {
+		return PARTICLES[level];
+	}
+	
+	public int getSpawnRate() {
+		return SPAWN_RATES[level];
+	}
+	
+	public int getStepMillis() {
+		return STEP_MILLIS[level];
+	}
+	
+	public void setTargetNanos(long value) {
+		targetNanos = value;
+	}
+}
@@ -0,0 +1,167 @@
+package net.shortround.rose;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Shader;
+
+/**
+ * Draws every live particle in one pass. Each particle is a copy of a
+ * pre-rendered sprite taken from an atlas that holds the sprite at a fixed
+ * number of opacity levels. On a software canvas the whole pass is a single
+ * drawVertices call: the particles fill a preallocated mesh of quads whose
+ * texture coordinates pick their cell from the atlas shader. Hardware
+ * canvases ignore drawVertices before API 29, so there the sprites are
+ * copied one at a time with no paint or matrix changes between them, which
+ * the hardware renderer merges into one draw from API 18.
+ */
+public class ParticleRenderer {
+	// Number of opacity levels in the atlas
+	private static final int ALPHA_LEVELS = 32;
+	
+	// Mesh layout, four corners and two triangles per particle
+	private static final int FLOATS_PER_QUAD = 8;
+	private static final int INDICES_PER_QUAD = 6;
+	private static final int MAX_QUADS = Short.MAX_VALUE / 4;
+	
+	private final Bitmap atlas;
+	private final int cellSize;
+	
+	// Reused for every draw
+	private final Rect source;
+	private final RectF destination;
+	
+	// Preallocated mesh, filled from the snapshot every frame
+	private final int quads;
+	private final float[] vertices;
+	private final float[] textureCoordinates;
+	private final short[] indices;
+	private final Paint meshPaint;
+	
+	public ParticleRenderer(int color, float radius, int capacity) {
+		// Leave a pixel of padding around each sprite
+		cellSize = (int) Math.ceil(radius * 2.0f) + 2;
+		
+		// Render the sprite once for every opacity level
+		atlas = Bitmap.createBitmap(cellSize * ALPHA_LEVELS, cellSize, Bitmap.Config.ARGB_8888);
+		Canvas canvas = new Canvas(atlas);
+		Paint paint = new Paint();
+		paint.setColor(color);
+		
+		for (int level = 0; level < ALPHA_LEVELS; level++) {
+			paint.setAlpha(level * 255 / (ALPHA_LEVELS - 1));
+			canvas.drawCircle(level * cellSize + cellSize / 2.0f, cellSize / 2.0f, radius, paint);
+		}
+		
+		source = new Rect();
+		destination = new RectF();
+		
+		// Indices never change, each quad is two triangles over its own corners
+		quads = Math.min(capacity, MAX_QUADS);
+		vertices = new float[quads * FLOATS_PER_QUAD];
+		textureCoordinates = new float[quads * FLOATS_PER_QUAD];
+		indices = new short[quads * INDICES_PER_QUAD];
+		for (int q = 0; q < quads; q++) {
+			int corner = q * 4;
+			int index = q * INDICES_PER_QUAD;
+			indices[index] = (short) corner;
+			indices[index + 1] = (short) (corner + 1);
+			indices[index + 2] = (short) (corner + 2);
+			indices[index + 3] = (short) corner;
+			indices[index + 4] = (short) (corner + 2);
+			indices[index + 5] = (short) (corner + 3);
+		}
+		
+		// The mesh samples the atlas through the paint's shader
+		meshPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		meshPaint.setShader(new BitmapShader(atlas, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+	}
+	
+	public void draw(Canvas canvas, ParticleSystem.Particles particles) {
+		draw(canvas, particles, 1.0f);
+	}
+	
+	/**
+	 * Draws the particles part of the way between their previous and latest
+	 * steps, for hosts that draw more often than they step.
+	 */
+	public void draw(Canvas canvas, ParticleSystem.Particles particles, float alpha) {
+		if (canvas.isHardwareAccelerated()) {
+			drawSprites(canvas, particles, alpha);
+		} else {
+			drawMesh(canvas, particles, alpha);
+		}
+	}
+	
+	private void drawMesh(Canvas canvas, ParticleSystem.Particles particles, float alpha) {
+		float half = cellSize / 2.0f;
+		int count = 0;
+		
+		for (int i = 0; i < particles.size(); i++) {
+			int level = getLevel(particles.getOpacity(i));
+			if (level == 0) continue;
+			
+			// Only a snapshot bigger than the mesh needs a second call
+			if (count == quads) {
+				flushMesh(canvas, count);
+				count = 0;
+			}
+			
+			float x = particles.getX(i, alpha);
+			float y = particles.getY(i, alpha);
+			float u = level * cellSize;
+			
+			// Corners clockwise from the top left, on screen and in the atlas
+			int offset = count * FLOATS_PER_QUAD;
+			setQuad(vertices, offset, x - half, y - half, x + half, y + half);
+			setQuad(textureCoordinates, offset, u, 0, u + cellSize, cellSize);
+			count++;
+		}
+		
+		if (count > 0) flushMesh(canvas, count);
+	}
+	
+	private void flushMesh(Canvas canvas, int count) {
+		canvas.drawVertices(Canvas.VertexMode.TRIANGLES, count * FLOATS_PER_QUAD, vertices, 0,
+				textureCoordinates, 0, null, 0, indices, 0, count * INDICES_PER_QUAD, meshPaint);
+	}
+	
+	private void drawSprites(Canvas canvas, ParticleSystem.Particles particles, float alpha) {
+		float half = cellSize / 2.0f;
+		
+		for (int i = 0; i < particles.size(); i++) {
+			int level = getLevel(particles.getOpacity(i));
+			if (level == 0) continue;
+			
+			// Copy it, centred on the particle
+			float x = particles.getX(i, alpha);
+			float y = particles.getY(i, alpha);
+			
+			source.set(level * cellSize, 0, (level + 1) * cellSize, cellSize);
+			destination.set(x - half, y - half, x + half, y + half);
+			canvas.drawBitmap(atlas, source, destination, null);
+		}
+	}
+	
+	// The sprite closest to the particle's opacity, 0 when it can't be seen
+	private static int getLevel(int opacity) {
+		int level = (opacity * (ALPHA_LEVELS - 1) + 127) / 255;
+		if (level <= 0) return 0;
+		
+		return level >= ALPHA_LEVELS ? ALPHA_LEVELS - 1 : level;
+	}
+	
+	private static void setQuad(float[] quad, int offset, float left, float top, float right, float bottom) {
+		quad[offset] = left;
+		quad[offset + 1] = top;
+		quad[offset + 2] = right;
+		quad[offset + 3] = top;
+		quad[offset + 4] = right;
+		quad[offset + 5] = bottom;
+		quad[offset + 6] = left;
+		quad[offset + 7] = bottom;
+	}
+}
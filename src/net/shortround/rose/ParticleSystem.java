@@ -1,102 +1,342 @@
 package net.shortround.rose;
 
-import java.util.ArrayList;
 import java.util.Random;
-import java.util.concurrent.CopyOnWriteArrayList;
-
-import android.graphics.RectF;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * The particle simulation. It's plain Java, so it can be stepped and
+ * measured off the device, and given a seed it produces the same particles
+ * every time it's started.
+ */
 public class ParticleSystem {
 	// Particle constants
 	private static final int MAX_PARTICLES = 10;
 	
-	// Age constants
+	// Age constants, in steps at the default step length
 	private static final int MIN_AGE = 100;
 	private static final int MAX_AGE = 120;
 	
+	// Simulated time per step, ages are kept in milliseconds
+	public static final int DEFAULT_STEP_MILLIS = 50;
+	
+	// Instrumentation
+	private static final Metrics.Histogram STEP = Metrics.histogram("particles.step");
+	private static final Metrics.Gauge LIVE = Metrics.gauge("particles.live");
+	private static final Trace.Span TICK = Trace.span("tick");
+	
 	// Box constants
 	public static final int TOP = 0;
 	public static final int LEFT = 1;
 	public static final int BOTTOM = 2;
 	public static final int RIGHT = 3;
 	
-	private CopyOnWriteArrayList<Particle> particles;
+	// Simulation state, only touched by the stepping thread
+	private final float[] x;
+	private final float[] y;
+	private final float[] startX;
+	private final float[] startY;
+	private final float[] endX;
+	private final float[] endY;
+	private final float[] drift;
+	private final int[] age;
+	private final int[] maxAge;
+	private int size;
+	private long sequence;
+	
+	// Budget, set by the stepping thread
+	private int budget;
+	private int spawnRate;
+	private int stepMillis;
 	
-	private RectF generationBox;
-	private RectF maxBox;
+	// Triple buffered snapshots. The stepping thread owns back, the drawing
+	// thread owns front, and the latest published snapshot waits in ready.
+	private Particles back;
+	private final AtomicReference<Particles> ready;
+	private Particles front;
 	
-	private Random generator;
+	private Box generationBox;
+	private Box maxBox;
 	
-	public ParticleSystem(RectF generationBox, RectF maxBox) {
-		// Build the list of particles
-		particles = new CopyOnWriteArrayList<Particle>();
+	// Seeded generators restart their sequence on every start()
+	private final Random generator;
+	private final boolean seeded;
+	private final long seed;
+	
+	// Set from any thread, picked up on the next step
+	private volatile Trajectory trajectory;
+	
+	// Shared by every particle, since they hold no per-particle state
+	private final Easing positionInterpolator;
+	private final Easing opacityInterpolator;
+	
+	public ParticleSystem(Box generationBox, Box maxBox) {
+		this(generationBox, maxBox, MAX_PARTICLES);
+	}
+	
+	public ParticleSystem(Box generationBox, Box maxBox, int capacity) {
+		this(generationBox, maxBox, capacity, false, 0);
+	}
+	
+	public ParticleSystem(Box generationBox, Box maxBox, int capacity, long seed) {
+		this(generationBox, maxBox, capacity, true, seed);
+	}
+	
+	private ParticleSystem(Box generationBox, Box maxBox, int capacity, boolean seeded, long seed) {
+		// Build the simulation state
+		x = new float[capacity];
+		y = new float[capacity];
+		startX = new float[capacity];
+		startY = new float[capacity];
+		endX = new float[capacity];
+		endY = new float[capacity];
+		drift = new float[capacity];
+		age = new int[capacity];
+		maxAge = new int[capacity];
+		size = 0;
+		sequence = 0;
+		
+		// Run at full capacity until told otherwise
+		budget = capacity;
+		spawnRate = 1;
+		stepMillis = DEFAULT_STEP_MILLIS;
+		
+		// Build the snapshots
+		back = new Particles(capacity);
+		ready = new AtomicReference<Particles>(new Particles(capacity));
+		front = new Particles(capacity);
 		
 		// Set up the boxes
 		this.generationBox = generationBox;
 		this.maxBox = maxBox;
 		
 		// Set up the random number generator
-		generator = new Random();
+		this.seeded = seeded;
+		this.seed = seed;
+		generator = seeded ? new Random(seed) : new Random();
+		
+		// Default to straight line motion
+		trajectory = Trajectory.LINEAR;
+		
+		// Create the interpolators
+		positionInterpolator = Easing.DECELERATE;
+		opacityInterpolator = Easing.ACCELERATE_DECELERATE;
 	}
 	
 	public void start() {
+		// Replay the same particles every time when seeded
+		if (seeded) generator.setSeed(seed);
+		
 		// Clear the particles and add new ones
-		particles.clear();
+		size = 0;
+		publish();
 	}
 	
 	public void step() {
-		ArrayList<Particle> deceased = new ArrayList<Particle>();
+		long start = Metrics.start();
+		Particles snapshot = back;
+		Trajectory motion = trajectory;
 		
 		// Age the particles
-		for (Particle particle : particles) {
-			particle.step();
+		for (int i = 0; i < size; i++) {
+			age[i] += stepMillis;
 			
-			// Mark invalids for death
-			if (particle.isDead()) {
-				deceased.add(particle);
+			if (age[i] >= maxAge[i] && size > budget) {
+				// Over budget, so retire it and step the last particle in its place
+				moveParticle(size - 1, i);
+				size--;
+				i--;
+			} else if (age[i] >= maxAge[i]) {
+				// Death and birth, recycling the slot in place
+				spawnParticle(i);
+			} else {
+				// Calculate drawing values
+				float progress = (float) age[i] / (float) maxAge[i];
+				float distance = positionInterpolator.getInterpolation(progress);
+				
+				snapshot.previousX[i] = x[i];
+				snapshot.previousY[i] = y[i];
+				x[i] = motion.getX(startX[i], startY[i], endX[i], endY[i], drift[i], distance);
+				y[i] = motion.getY(startX[i], startY[i], endX[i], endY[i], drift[i], distance);
+				snapshot.x[i] = x[i];
+				snapshot.y[i] = y[i];
+				snapshot.opacity[i] = calculateOpacity(progress);
 			}
 		}
 		
-		// Death and Birth
-		for (Particle particle : deceased) {
-			// Kill the old particle
-			particles.remove(particle);
-			
-			// Add a new particle
-			particles.add(createParticle());
+		// Add particles if we don't have enough
+		for (int i = 0; i < spawnRate && size < budget; i++) {
+			spawnParticle(size);
+			size++;
 		}
 		
-		// Add a particle if we don't have enough
-		if (particles.size() < MAX_PARTICLES) {
-			particles.add(createParticle());
-		}
+		publish();
+		
+		LIVE.set(size);
+		STEP.recordSince(start);
+		TICK.end(start);
 	}
 	
 	public void stop() {
 		// Clear the particles
-		particles.clear();
+		size = 0;
+		publish();
 	}
 	
-	public void changeBoxes(RectF generationBox, RectF maxBox) {
+	public void changeBoxes(Box generationBox, Box maxBox) {
 		this.generationBox = generationBox;
 		this.maxBox = maxBox;
 	}
 	
-	private Particle createParticle() {
+	public void setTrajectory(Trajectory trajectory) {
+		this.trajectory = trajectory;
+	}
+	
+	/**
+	 * Limits the live particles and how many are born per step. Particles
+	 * over a lowered budget live out their lives rather than vanishing.
+	 */
+	public void setBudget(int particles, int spawnRate) {
+		budget = Math.max(0, Math.min(particles, x.length));
+		this.spawnRate = Math.max(1, spawnRate);
+	}
+	
+	/**
+	 * Sets how much time each step simulates, so the stepping rate can
+	 * change without the particles changing speed.
+	 */
+	public void setStepMillis(int value) {
+		stepMillis = Math.max(1, value);
+	}
+	
+	public int getBudget() {
+		return budget;
+	}
+	
+	public int getStepMillis() {
+		return stepMillis;
+	}
+	
+	private int calculateOpacity(float progress) {
+		float value = opacityInterpolator.getInterpolation(progress);
+		
+		if (value >= 0.50f) value = 1.0f - value;
+		
+		return (int) (value * 510.0f);
+	}
+	
+	private void publish() {
+		// Finish the back snapshot and swap it for whatever was waiting
+		back.size = size;
+		back.sequence = ++sequence;
+		back = ready.getAndSet(back);
+	}
+	
+	private void spawnParticle(int index) {
 		// Create starting point
 		float startX = generationBox.left + generator.nextFloat() * (generationBox.right - generationBox.left);
 		float startY = generationBox.top + generator.nextFloat() * (generationBox.bottom - generationBox.top);
 		
-		// Create an age
-		int age = MIN_AGE + generator.nextInt(MAX_AGE - MIN_AGE);
+		// Move to a random point in the max box
+		endX[index] = maxBox.left + generator.nextFloat() * (maxBox.right - maxBox.left);
+		endY[index] = maxBox.top + generator.nextFloat() * (maxBox.top - maxBox.bottom);
+		
+		// Record starting positions
+		this.startX[index] = startX;
+		this.startY[index] = startY;
+		drift[index] = generator.nextFloat() * 2.0f - 1.0f;
+		x[index] = startX;
+		y[index] = startY;
 		
-		// Create the particle
-		Particle particle = new Particle(startX, startY, maxBox, age);
+		// Prepare the age
+		age[index] = 0;
+		maxAge[index] = (MIN_AGE + generator.nextInt(MAX_AGE - MIN_AGE)) * DEFAULT_STEP_MILLIS;
 		
-		return particle;
+		// A new particle sits still and invisible until its first step
+		Particles snapshot = back;
+		snapshot.x[index] = startX;
+		snapshot.y[index] = startY;
+		snapshot.previousX[index] = startX;
+		snapshot.previousY[index] = startY;
+		snapshot.opacity[index] = 0;
 	}
 	
-	public CopyOnWriteArrayList<Particle> getParticles() {
-		return particles;
+	private void moveParticle(int from, int to) {
+		x[to] = x[from];
+		y[to] = y[from];
+		startX[to] = startX[from];
+		startY[to] = startY[from];
+		endX[to] = endX[from];
+		endY[to] = endY[from];
+		drift[to] = drift[from];
+		age[to] = age[from];
+		maxAge[to] = maxAge[from];
+	}
+	
+	/**
+	 * Returns the latest published snapshot without locking or copying. Only
+	 * the drawing thread may call this, and the snapshot it gets back is not
+	 * touched by the stepping thread until the drawing thread calls again.
+	 */
+	public Particles getParticles() {
+		// Take the waiting snapshot if it is newer than ours
+		if (ready.get().sequence > front.sequence) {
+			front = ready.getAndSet(front);
+		}
+		
+		return front;
+	}
+	
+	/**
+	 * Snapshot of the particles as of one step, kept as parallel primitive
+	 * arrays. Live particles always occupy the first size() slots, so readers
+	 * can walk them by index. Only the ParticleSystem can modify it.
+	 */
+	public static final class Particles {
+		private final float[] x;
+		private final float[] y;
+		private final float[] previousX;
+		private final float[] previousY;
+		private final int[] opacity;
+		private int size;
+		private long sequence;
+		
+		private Particles(int capacity) {
+			x = new float[capacity];
+			y = new float[capacity];
+			previousX = new float[capacity];
+			previousY = new float[capacity];
+			opacity = new int[capacity];
+			size = 0;
+			sequence = 0;
+		}
+		
+		public int capacity() {
+			return x.length;
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		public float getX(int index) {
+			return x[index];
+		}
+		
+		public float getY(int index) {
+			return y[index];
+		}
+		
+		// Position blended between the previous step (alpha 0) and the latest (alpha 1)
+		public float getX(int index, float alpha) {
+			return previousX[index] + (x[index] - previousX[index]) * alpha;
+		}
+		
+		public float getY(int index, float alpha) {
+			return previousY[index] + (y[index] - previousY[index]) * alpha;
+		}
+		
+		public int getOpacity(int index) {
+			return opacity[index];
+		}
 	}
 }
@@ -0,0 +1,110 @@
+package net.shortround.rose;
+
+/**
+ * The path a falling petal follows, sampled once per screen size. The
+ * petal drops from the middle of the bottom edge and curves off to the
+ * right along a quadratic Bezier. Samples are spaced evenly along its
+ * length, so a petal moves at the speed its easing says, and hold the
+ * position and heading so that drawing a petal is a table lookup.
+ */
+public class PetalTrack {
+	// Samples along the path, more only smooth out the heading
+	public static final int DEFAULT_SAMPLES = 128;
+	
+	// Steps in t used to measure the curve
+	private static final int MEASURE_STEPS = 1024;
+	
+	private final float[] x;
+	private final float[] y;
+	private final float[] heading;
+	private final float length;
+	
+	/**
+	 * Samples the drop for a screen of the given size. The curve bottoms out
+	 * the given depth below the screen.
+	 */
+	public PetalTrack(float width, float height, float depth) {
+		this(width / 2, height, width / 2, height + depth, width, height + depth, DEFAULT_SAMPLES);
+	}
+	
+	public PetalTrack(float startX, float startY, float controlX, float controlY, float endX, float endY, int samples) {
+		x = new float[samples];
+		y = new float[samples];
+		heading = new float[samples];
+		
+		// Measure the curve, keeping the distance covered at each step
+		float[] distance = new float[MEASURE_STEPS + 1];
+		float lastX = startX;
+		float lastY = startY;
+		for (int step = 1; step <= MEASURE_STEPS; step++) {
+			float t = (float) step / MEASURE_STEPS;
+			float px = bezier(startX, controlX, endX, t);
+			float py = bezier(startY, controlY, endY, t);
+			
+			distance[step] = distance[step - 1] + (float) Math.hypot(px - lastX, py - lastY);
+			lastX = px;
+			lastY = py;
+		}
+		length = distance[MEASURE_STEPS];
+		
+		// Heading is measured from straight down, where every drop starts
+		double startHeading = Math.atan2(controlY - startY, controlX - startX);
+		
+		int step = 0;
+		for (int i = 0; i < samples; i++) {
+			// Find the step that covers this sample's share of the length
+			float target = length * i / (samples - 1);
+			while (step < MEASURE_STEPS - 1 && distance[step + 1] < target) step++;
+			
+			float span = distance[step + 1] - distance[step];
+			float fraction = span > 0 ? (target - distance[step]) / span : 0;
+			float t = (step + Math.min(fraction, 1.0f)) / MEASURE_STEPS;
+			
+			x[i] = bezier(startX, controlX, endX, t);
+			y[i] = bezier(startY, controlY, endY, t);
+			
+			float dx = derivative(startX, controlX, endX, t);
+			float dy = derivative(startY, controlY, endY, t);
+			heading[i] = (float) Math.toDegrees(Math.atan2(dy, dx) - startHeading);
+		}
+	}
+	
+	private static float bezier(float p0, float p1, float p2, float t) {
+		float u = 1.0f - t;
+		return u * u * p0 + 2.0f * u * t * p1 + t * t * p2;
+	}
+	
+	private static float derivative(float p0, float p1, float p2, float t) {
+		return 2.0f * (1.0f - t) * (p1 - p0) + 2.0f * t * (p2 - p1);
+	}
+	
+	/*** Lookup ***/
+	
+	public float getX(float progress) {
+		return lookup(x, progress);
+	}
+	
+	public float getY(float progress) {
+		return lookup(y, progress);
+	}
+	
+	/**
+	 * Degrees the path has turned from straight down at this point.
+	 */
+	public float getHeading(float progress) {
+		return lookup(heading, progress);
+	}
+	
+	public float getLength() {
+		return length;
+	}
+	
+	private static float lookup(float[] table, float progress) {
+		// Interpolate between the two samples either side
+		float position = Math.max(0.0f, Math.min(progress, 1.0f)) * (table.length - 1);
+		int index = Math.min((int) position, table.length - 2);
+		float fraction = position - index;
+		
+		return table[index] + (table[index + 1] - table[index]) * fraction;
+	}
+}
@@ -0,0 +1,118 @@
+package net.shortround.rose;
+
+/**
+ * Trades smoothness for battery on long shows. As the battery drains, each
+ * simulation step covers more time and frames are drawn less often, so the
+ * CPU wakes up less; on the charger everything runs at full rate. It also
+ * counts wakeups, the times a loop woke to do work, over the last minute so
+ * the savings can be checked from the stats command. The count is published
+ * once a second, as long as something is waking up.
+ */
+public class PowerPolicy {
+	// Battery levels, in percent, below which we slow down
+	public static final int LOW_BATTERY = 50;
+	public static final int CRITICAL_BATTERY = 20;
+	
+	// Step length scale and frame interval for each power level
+	private static final int[] STEP_SCALE_PERCENT = { 100, 150, 200 };
+	private static final int[] FRAME_INTERVAL_MILLIS = { 0, 33, 50 };
+	
+	// Wakeups are counted per second over the last minute
+	private static final int SECONDS = 60;
+	
+	// Instrumentation
+	private static final Metrics.Counter WAKEUPS = Metrics.counter("power.wakeups");
+	private static final Metrics.Gauge WAKEUPS_PER_MINUTE = Metrics.gauge("power.wakeups_per_minute");
+	private static final Metrics.Gauge POWER_LEVEL = Metrics.gauge("power.level");
+	
+	private final long[] bucketSeconds;
+	private final int[] bucketCounts;
+	
+	private volatile int level;
+	
+	public PowerPolicy() {
+		bucketSeconds = new long[SECONDS];
+		bucketCounts = new int[SECONDS];
+		
+		// Full rate until we hear from the battery
+		level = 0;
+	}
+	
+	/*** Battery ***/
+	
+	/**
+	 * Takes a new battery reading, in percent or -1 if unknown. Returns true
+	 * if the rates changed.
+	 */
+	public synchronized boolean setBattery(int percent, boolean charging) {
+		int value;
+		if (charging || percent < 0 || percent >= LOW_BATTERY) {
+			value = 0;
+		} else if (percent >= CRITICAL_BATTERY) {
+			value = 1;
+		} else {
+			value = 2;
+		}
+		
+		if (value == level) return false;
+		
+		level = value;
+		POWER_LEVEL.set(value);
+		return true;
+	}
+	
+	public int getLevel() {
+		return level;
+	}
+	
+	/**
+	 * Scales a step length to the battery.
+	 */
+	public int scaleStepMillis(int stepMillis) {
+		return stepMillis * STEP_SCALE_PERCENT[level] / 100;
+	}
+	
+	/**
+	 * How long to wait between frames while something moves, or 0 for every
+	 * vsync.
+	 */
+	public int getFrameIntervalMillis() {
+		return FRAME_INTERVAL_MILLIS[level];
+	}
+	
+	/*** Wakeups ***/
+	
+	public void recordWakeup() {
+		WAKEUPS.increment();
+		
+		long second = System.nanoTime() / 1000000000L;
+		synchronized (this) {
+			// Reuse the bucket once its second has rolled out of the minute,
+			// publishing the minute that just ended as we go
+			int index = (int) (second % SECONDS);
+			if (bucketSeconds[index] != second) {
+				WAKEUPS_PER_MINUTE.set(countWakeups(second));
+				
+				bucketSeconds[index] = second;
+				bucketCounts[index] = 0;
+			}
+			bucketCounts[index]++;
+		}
+	}
+	
+	/**
+	 * Wakeups over the last minute.
+	 */
+	public synchronized int getWakeupsPerMinute() {
+		return countWakeups(System.nanoTime() / 1000000000L);
+	}
+	
+	private int countWakeups(long second) {
+		int total = 0;
+		for (int i = 0; i < SECONDS; i++) {
+			if (second - bucketSeconds[i] < SECONDS) total += bucketCounts[i];
+		}
+		
+		return total;
+	}
+}
@@ -7,6 +7,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.BatteryManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -16,6 +17,14 @@ import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+
 public class RoseActivity extends Activity {
 	// Debug
 	private static final String TAG = "RoseActivity";
@@ -23,19 +32,54 @@ public class RoseActivity extends Activity {
 	// Intent request codes
 	private static final int REQUEST_ENABLE_BT = 1;
 	
-	// Messages sent from the Bluetooth Service
+	// Render on a dedicated thread instead, where the platform supports it
+	private static final boolean RENDER_ON_SURFACE = false;
+	
+	// Fail on any allocation in the draw and step paths, for debugging
+	private static final boolean CHECK_ALLOCATIONS = false;
+	
+	// Serve remotes over Wi-Fi on this port instead of over Bluetooth
+	private static final boolean USE_TCP = false;
+	private static final int TCP_PORT = 7725;
+	
+	// State replies within this window are coalesced into one
+	public static final long DEFAULT_REPLY_WINDOW_MILLIS = 100;
+	
+	// Messages sent from the transport
 	public static final int MESSAGE_FAILURE = 3;
 	public static final int MESSAGE_GET_DATA = 4;
-	public static final int MESSAGE_READ = 5;
+	public static final int MESSAGE_COMMAND = 5;
 	public static final int MESSAGE_STATE_CHANGE = 6;
 	public static final int MESSAGE_WRITE = 7;
+	public static final int MESSAGE_CONNECTED = 8;
+	
+	// Instrumentation, from a command's arrival to its being applied
+	private static final Trace.Span COMMAND = Trace.span("command");
+	
+	// Opcodes are a byte, so each command's trace id rides above it
+	private static final int OPCODE_MASK = 0xFF;
+	private static final int COMMAND_ID_MASK = 0xFFFFFF;
+	
+	// Each export replaces the last, so repeated requests can't fill the storage
+	private static final String TRACE_FILE = "rose-trace.json";
 	
 	private BroadcastReceiver batteryReceiver;
-	private RoseView roseView;
+	private RoseScene roseScene;
+	private View roseView;
 	
-	private StringBuffer outputStringBuffer;
 	private BluetoothAdapter bluetoothAdapter = null;
-	private BluetoothService bluetoothService = null;
+	private Transport transport = null;
+	
+	// Outgoing state, coalesced before it's queued for writing
+	private long replyWindowMillis = DEFAULT_REPLY_WINDOW_MILLIS;
+	private boolean replyPending = false;
+	private int replySequence;
+	
+	// Numbers every command for tracing, text commands all have sequence 0
+	private final AtomicInteger commandIds = new AtomicInteger();
+	
+	// Set while a trace is being written
+	private final AtomicBoolean exportingTrace = new AtomicBoolean();
 	
     /*** Lifecycle Callbacks ***/
 	
@@ -43,7 +87,7 @@ public class RoseActivity extends Activity {
     	switch (requestCode) {
     	case REQUEST_ENABLE_BT:
     		if (resultCode == Activity.RESULT_OK) {
-    			setupBluetoothService();
+    			setupTransport();
     		} else {
     			Log.e(TAG, "Bluetooth not enabled");
     			finish();
@@ -73,8 +117,20 @@ public class RoseActivity extends Activity {
         	return;
         }
         
+        // Count allocations on the hot paths if we're debugging them
+        AllocationChecker.setEnabled(CHECK_ALLOCATIONS);
+        AllocationChecker.setStrict(CHECK_ALLOCATIONS);
+        
         // Build the view
-        roseView = new RoseView(this);
+        if (RENDER_ON_SURFACE && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+        	RoseSurfaceView surfaceView = new RoseSurfaceView(this);
+        	roseScene = surfaceView.getScene();
+        	roseView = surfaceView;
+        } else {
+        	RoseView view = new RoseView(this);
+        	roseScene = view.getScene();
+        	roseView = view;
+        }
         roseView.setFocusable(true);
         
         // Build the battery receiver
@@ -88,7 +144,10 @@ public class RoseActivity extends Activity {
         		if (rawLevel  >= 0 && scale > 0) {
         			level = (rawLevel * 100) / scale;
         		}
-        		roseView.setBattery(level);
+        		
+        		// Any power source counts as charging
+        		boolean charging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        		roseScene.setBattery(level, charging);
         	}
         };
         
@@ -96,6 +155,14 @@ public class RoseActivity extends Activity {
         setContentView(roseView);
     }
     
+    @Override
+    protected void onDestroy() {
+    	super.onDestroy();
+    	
+    	// Drop any reply still waiting
+    	bluetoothHandler.removeCallbacks(flushState);
+    }
+    
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event)  {
         if (keyCode == KeyEvent.KEYCODE_BACK && event.getRepeatCount() == 0) {
@@ -131,9 +198,9 @@ public class RoseActivity extends Activity {
         roseView.setSystemUiVisibility(View.SYSTEM_UI_FLAG_LOW_PROFILE);
         
         // Restart Bluetooth if we need to
-        if (bluetoothService != null) {
-    		if (bluetoothService.getState() == BluetoothService.STATE_NONE) {
-    			bluetoothService.start();
+        if (transport != null) {
+    		if (transport.getState() == Transport.STATE_NONE) {
+    			transport.start();
     		}
     	}
     }
@@ -147,30 +214,30 @@ public class RoseActivity extends Activity {
     		Intent enableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
     		startActivityForResult(enableIntent, REQUEST_ENABLE_BT);
     	} else {
-    		if (bluetoothService == null) setupBluetoothService();
+    		if (transport == null) setupTransport();
     	}
     }
     
     /*** Actions ***/
-    private void decay() {
-    	roseView.decay();
+    private void decay(int sequence) {
+    	roseScene.decay();
     	
     	// Send a bluetooth message with the current data
-    	sendMessage(roseView.getSerializedData().toString());
+    	sendState(sequence);
     }
     
-    private void revert() {
-    	roseView.revert();
+    private void revert(int sequence) {
+    	roseScene.revert();
     	
     	// Send a bluetooth message with the current data
-    	sendMessage(roseView.getSerializedData().toString());
+    	sendState(sequence);
     }
     
-    private void toggleDisplay() {
-    	roseView.toggleDisplay();
+    private void toggleDisplay(int sequence) {
+    	roseScene.toggleDisplay();
     	
     	// Send a bluetooth message with the current data
-    	sendMessage(roseView.getSerializedData().toString());
+    	sendState(sequence);
     }
     
     /*** Bluetooth Methods ***/
@@ -183,19 +250,27 @@ public class RoseActivity extends Activity {
     			break;
     		case MESSAGE_GET_DATA:
     			break;
-    		case MESSAGE_READ:
-    			byte[] readBuf = (byte[]) message.obj;
-    			String readMessage = new String(readBuf, 0, message.arg1);
-    			parseMessage(readMessage);
+    		case MESSAGE_CONNECTED:
+    			// A new or returning remote starts from the current state
+    			sendStateTo(message.arg1, false, 0);
+    			break;
+    		case MESSAGE_COMMAND:
+    			// Already framed, the command id, opcode, client and sequence ride in the arguments
+    			handleCommand(message.arg1 & OPCODE_MASK, message.arg2 >>> 16, message.arg2 & 0xFFFF);
+    			COMMAND.endAsync(message.arg1 >>> 8);
     			break;
     		case MESSAGE_STATE_CHANGE:
     			switch(message.arg1) {
-    			case BluetoothService.STATE_NONE:
-    			case BluetoothService.STATE_LISTEN:
+    			case Transport.STATE_NONE:
+    			case Transport.STATE_LISTEN:
+    			case Transport.STATE_BACKOFF:
+    				// Nobody is left to reply to
+    				replyPending = false;
+    				removeCallbacks(flushState);
     				break;
-    			case BluetoothService.STATE_CONNECTING:
+    			case Transport.STATE_CONNECTING:
     				break;
-    			case BluetoothService.STATE_CONNECTED:
+    			case Transport.STATE_CONNECTED:
     				break;
     			}
     			break;
@@ -205,6 +280,28 @@ public class RoseActivity extends Activity {
     	}
     };
     
+    // Forwards transport events to the UI thread without allocating
+    private final Transport.Listener transportListener = new Transport.Listener() {
+    	public void onStateChanged(int state) {
+    		bluetoothHandler.obtainMessage(MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+    	}
+    	
+    	public void onConnected(int clientId) {
+    		bluetoothHandler.obtainMessage(MESSAGE_CONNECTED, clientId, -1).sendToTarget();
+    	}
+    	
+    	public void onCommand(int clientId, int opcode, int sequence) {
+    		// Client ids are 15 bits and sequences 16, so they share an argument
+    		int commandId = commandIds.incrementAndGet() & COMMAND_ID_MASK;
+    		COMMAND.beginAsync(commandId);
+    		bluetoothHandler.obtainMessage(MESSAGE_COMMAND, (commandId << 8) | opcode, (clientId << 16) | sequence).sendToTarget();
+    	}
+    	
+    	public void onConnectionLost(int clientId) {
+    		bluetoothHandler.obtainMessage(MESSAGE_FAILURE, clientId, -1).sendToTarget();
+    	}
+    };
+    
     public void ensureDiscoverable() {
         if (bluetoothAdapter.getScanMode() != BluetoothAdapter.SCAN_MODE_CONNECTABLE_DISCOVERABLE) {
             Intent discoverableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_DISCOVERABLE);
@@ -213,41 +310,170 @@ public class RoseActivity extends Activity {
         }
     }
     
-    private void parseMessage(String message) {
-    	if (message.equals("decay")) {
-    		decay();
-    	} else if (message.equals("revert")) {
-    		revert();
-    	} else if (message.equals("display")) {
-    		toggleDisplay();
-    	} else if (message.equals("data")) {
-    		sendMessage(roseView.getSerializedData().toString());
+    // Carries out framed commands, on the UI thread
+    private final CommandDispatcher commandDispatcher = new CommandDispatcher(new CommandDispatcher.Handler() {
+    	public void onHello(int clientId, int sequence) {
+    		// The remote speaks the binary protocol, answer it in kind from now on
+    		transport.setBinaryProtocol(clientId);
+    		transport.write(clientId, RoseProtocol.encodeHello(sequence));
+    		sendStateTo(clientId, true, sequence);
+    	}
+    	
+    	public void onDecay(int sequence) {
+    		decay(sequence);
+    	}
+    	
+    	public void onRevert(int sequence) {
+    		revert(sequence);
+    	}
+    	
+    	public void onDisplay(int sequence) {
+    		toggleDisplay(sequence);
+    	}
+    	
+    	public void onData(int sequence) {
+    		sendState(sequence);
+    	}
+    	
+    	public void onStats(int clientId, int sequence) {
+    		sendStats(clientId, sequence);
+    	}
+    	
+    	public void onTrace() {
+    		exportTrace();
+    	}
+    	
+    	public void onTrajectory() {
+    		roseScene.nextTrajectory();
+    	}
+    });
+    
+    private void handleCommand(int opcode, int clientId, int sequence) {
+    	if (!commandDispatcher.dispatch(opcode, clientId, sequence)) {
+    		Log.e(TAG, "Unknown opcode " + opcode);
+    	}
+    }
+    
+    /**
+     * Asks for the state to be sent to every remote. Requests made within the
+     * reply window are coalesced, and only the latest state goes out,
+     * carrying the sequence number of the latest command from any remote.
+     */
+    private void sendState(int sequence) {
+    	replySequence = sequence;
+    	if (replyPending) return;
+    	
+    	replyPending = true;
+    	bluetoothHandler.postDelayed(flushState, replyWindowMillis);
+    }
+    
+    private final Runnable flushState = new Runnable() {
+    	public void run() {
+    		replyPending = false;
+    		
+    		// Check that we have a connection
+    		if (transport == null || transport.getState() != Transport.STATE_CONNECTED) {
+    			Log.e(TAG, "Send state with no connection");
+    			return;
+    		}
+    		
+    		// Serialize here, so the scene is read on the thread that changes it,
+    		// and only once for each encoding in use
+    		byte[] binary = null;
+    		if (transport.getClientCount(true) > 0) {
+    			binary = RoseProtocol.encodeState(replySequence, roseScene.getDecay(), RoseScene.MAX_DECAY, roseScene.getBattery(), roseScene.getDisplay());
+    		}
+    		
+    		byte[] text = null;
+    		if (transport.getClientCount(false) > 0) {
+    			text = roseScene.getSerializedData().toString().getBytes();
+    		}
+    		
+    		transport.broadcast(binary, text);
+    	}
+    };
+    
+    private void sendStateTo(int clientId, boolean binary, int sequence) {
+    	byte[] out;
+    	if (binary) {
+    		out = RoseProtocol.encodeState(sequence, roseScene.getDecay(), RoseScene.MAX_DECAY, roseScene.getBattery(), roseScene.getDisplay());
+    	} else {
+    		out = roseScene.getSerializedData().toString().getBytes();
     	}
+    	
+    	transport.write(clientId, out);
     }
     
-    private void sendMessage(String message) {
-    	// Check that we have a connection
-    	if (bluetoothService != null && bluetoothService.getState() != BluetoothService.STATE_CONNECTED) {
-    		Log.e(TAG, "Send message with no connection");
+    /**
+     * Sends the metrics to one remote, straight away.
+     */
+    private void sendStats(int clientId, int sequence) {
+    	byte[] stats;
+    	try {
+    		stats = Metrics.toJson().toString().getBytes();
+    	} catch (JSONException e) {
+    		Log.e(TAG, "Stats creation failed", e);
     		return;
     	}
     	
-    	// Check that there's something to send
-    	if (message.length() > 0) {
-    		// Get the message as bytes
-    		byte[] send = message.getBytes();
-    		bluetoothService.write(send);
-    		
-    		// Clean up
-    		outputStringBuffer.setLength(0);
+    	if (transport.isBinaryProtocol(clientId)) {
+    		transport.write(clientId, RoseProtocol.encode(RoseProtocol.OP_STATS_REPORT, sequence, stats));
+    	} else {
+    		transport.write(clientId, stats);
     	}
     }
     
-    private void setupBluetoothService() {
-    	// Initialize the bluetooth service
-    	bluetoothService = new BluetoothService(this, bluetoothHandler);
+    /**
+     * Writes the trace to a file for chrome://tracing, off the UI thread,
+     * unless an export is already under way.
+     */
+    private void exportTrace() {
+    	// One export at a time, repeated requests while it runs are dropped
+    	if (!exportingTrace.compareAndSet(false, true)) {
+    		Log.w(TAG, "Trace export already running");
+    		return;
+    	}
     	
-    	// Build the outgoing buffer
-    	outputStringBuffer = new StringBuffer("");
+    	// External, so adb can pull it, which needs the storage permission up to API 18
+    	File directory = getExternalFilesDir(null);
+    	if (directory == null) directory = getFilesDir();
+    	final File file = new File(directory, TRACE_FILE);
+    	
+    	new Thread("TraceExport") {
+    		public void run() {
+    			FileWriter writer = null;
+    			try {
+    				writer = new FileWriter(file);
+    				Trace.writeTo(writer);
+    				Log.i(TAG, "Trace written to " + file);
+    			} catch (IOException e) {
+    				Log.e(TAG, "Trace export failed", e);
+    			} finally {
+    				if (writer != null) {
+    					try {
+    						writer.close();
+    					} catch (IOException e) {
+    						// Nothing more to do
+    					}
+    				}
+    				
+    				exportingTrace.set(false);
+    			}
+    		}
+    	}.start();
+    }
+    
+    public void setReplyWindow(long millis) {
+    	replyWindowMillis = millis;
+    }
+    
+    private void setupTransport() {
+    	// Initialize the transport
+    	if (USE_TCP) {
+    		transport = new TcpTransport(TCP_PORT);
+    	} else {
+    		transport = new BluetoothService(this);
+    	}
+    	transport.setListener(transportListener);
     }
 }
\ No newline at end of file
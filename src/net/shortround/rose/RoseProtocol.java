@@ -0,0 +1,121 @@
+package net.shortround.rose;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Compact binary framing for the command link. Every frame is a fixed
+ * header followed by an optional payload:
+ *
+ *   magic (1) | version (1) | opcode (1) | sequence (2) | length (2) | payload
+ *
+ * Multi-byte fields are big endian. The magic byte is outside printable
+ * ASCII, so a frame can always be told apart from the older text commands.
+ * A remote asks for the binary protocol by sending HELLO; until then the
+ * link stays on the text commands and JSON state replies, which are also
+ * built here. Incoming frames are parsed by StreamFramer, along with the
+ * text commands they arrive among.
+ */
+public final class RoseProtocol {
+	// Framing
+	public static final int MAGIC = 0xB5;
+	public static final int VERSION = 1;
+	public static final int HEADER_LENGTH = 7;
+	public static final int MAX_PAYLOAD_LENGTH = 0xFFFF;
+	
+	// Opcodes, remote to rose, PING and PONG go both ways
+	public static final int OP_HELLO = 0x01;
+	public static final int OP_PING = 0x02;
+	public static final int OP_PONG = 0x03;
+	public static final int OP_DECAY = 0x10;
+	public static final int OP_REVERT = 0x11;
+	public static final int OP_DISPLAY = 0x12;
+	public static final int OP_DATA = 0x13;
+	public static final int OP_STATS = 0x14;
+	public static final int OP_ENABLE_STATS = 0x15;
+	public static final int OP_DISABLE_STATS = 0x16;
+	public static final int OP_TRACE = 0x17;
+	public static final int OP_TRAJECTORY = 0x18;
+	
+	// Opcodes, rose to remote
+	public static final int OP_STATE = 0x20;
+	public static final int OP_STATS_REPORT = 0x21;
+	
+	// State record: decay, max decay, battery, display
+	public static final int STATE_LENGTH = 4;
+	
+	private RoseProtocol() {
+	}
+	
+	/*** Encoding ***/
+	
+	public static byte[] encodeHello(int sequence) {
+		byte[] frame = new byte[HEADER_LENGTH + 1];
+		writeHeader(frame, 0, OP_HELLO, sequence, 1);
+		frame[HEADER_LENGTH] = (byte) VERSION;
+		
+		return frame;
+	}
+	
+	/**
+	 * Encodes a frame with no payload, such as PING or PONG.
+	 */
+	public static byte[] encode(int opcode, int sequence) {
+		byte[] frame = new byte[HEADER_LENGTH];
+		writeHeader(frame, 0, opcode, sequence, 0);
+		
+		return frame;
+	}
+	
+	/**
+	 * Encodes a frame carrying the given payload, such as a stats report.
+	 */
+	public static byte[] encode(int opcode, int sequence, byte[] payload) {
+		if (payload.length > MAX_PAYLOAD_LENGTH) throw new IllegalArgumentException("Payload too long: " + payload.length);
+		
+		byte[] frame = new byte[HEADER_LENGTH + payload.length];
+		writeHeader(frame, 0, opcode, sequence, payload.length);
+		System.arraycopy(payload, 0, frame, HEADER_LENGTH, payload.length);
+		
+		return frame;
+	}
+	
+	public static byte[] encodeState(int sequence, int decay, int maxDecay, int battery, boolean display) {
+		byte[] frame = new byte[HEADER_LENGTH + STATE_LENGTH];
+		writeHeader(frame, 0, OP_STATE, sequence, STATE_LENGTH);
+		frame[HEADER_LENGTH] = (byte) decay;
+		frame[HEADER_LENGTH + 1] = (byte) maxDecay;
+		frame[HEADER_LENGTH + 2] = (byte) battery;
+		frame[HEADER_LENGTH + 3] = (byte) (display ? 1 : 0);
+		
+		return frame;
+	}
+	
+	/**
+	 * Encodes the state the way the text protocol sends it.
+	 */
+	public static JSONObject encodeJsonState(int decay, int maxDecay, int battery, boolean display) throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("decay", decay);
+		json.put("max_decay", maxDecay);
+		json.put("battery", battery);
+		json.put("display", display);
+		
+		return json;
+	}
+	
+	public static void writeHeader(byte[] buffer, int offset, int opcode, int sequence, int payloadLength) {
+		buffer[offset] = (byte) MAGIC;
+		buffer[offset + 1] = (byte) VERSION;
+		buffer[offset + 2] = (byte) opcode;
+		writeShort(buffer, offset + 3, sequence);
+		writeShort(buffer, offset + 5, payloadLength);
+	}
+	
+	/*** Utilities ***/
+	
+	private static void writeShort(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >> 8);
+		buffer[offset + 1] = (byte) value;
+	}
+}
@@ -0,0 +1,647 @@
+package net.shortround.rose;
+
+import java.util.Random;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.animation.TimeInterpolator;
+import android.animation.ValueAnimator;
+import android.animation.ValueAnimator.AnimatorUpdateListener;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.MotionEvent;
+
+/**
+ * The rose itself: decay and display state, the petal drop animation, the
+ * particle system and all of the drawing. A scene does not own a surface or
+ * a thread; the view hosting it decides when the particles are stepped and
+ * when a frame is drawn.
+ */
+public class RoseScene {
+	// Debug
+	private static final String TAG = "RoseScene";
+	
+	// Decay Constants
+	public static final int MIN_DECAY = 0;
+	public static final int MAX_DECAY = 14;
+	
+	// Resource constants
+	private static final float ROSE_WIDTH = 575.0f;
+	private static final float ROSE_HEIGHT = 700.0f;
+	
+	// Particle constants
+	private static final float PARTICLE_RADIUS = 15.0f;
+	
+	// Particle motion, in the order the trajectory command cycles through it
+	private static final Trajectory[] TRAJECTORIES = {
+		Trajectory.LINEAR,
+		Trajectory.QUADRATIC_DRIFT,
+		Trajectory.GRAVITY
+	};
+	
+	// Frames allowed to allocate after the scene changes
+	private static final int GRACE_FRAMES = 2;
+	
+	// Instrumentation
+	private static final Metrics.Histogram DRAW = Metrics.histogram("draw");
+	private static final Trace.Span DRAW_SPAN = Trace.span("draw");
+	private static final Trace.Span DRAW_STEM = Trace.span("draw.stem");
+	private static final Trace.Span DRAW_FALLING_PETAL = Trace.span("draw.falling_petal");
+	private static final Trace.Span DRAW_PARTICLES = Trace.span("draw.particles");
+	private static final Trace.Span DRAW_PETALS = Trace.span("draw.petals");
+	
+	// Animation constants
+	private static final int MAX_FALLING_PETALS = 4;
+	private static final float PETAL_DEPTH = ROSE_HEIGHT * 1.5f;
+	private static final TimeInterpolator PETAL_INTERPOLATOR = new TimeInterpolator() {
+		public float getInterpolation(float input) {
+			return Easing.ACCELERATE_DECELERATE.getInterpolation(input);
+		}
+	};
+	
+	/**
+	 * Implemented by whatever displays the scene.
+	 */
+	public interface Host {
+		// The scene changed and needs to be drawn again
+		public void onSceneChanged();
+		
+		// The particle system should start or stop being stepped
+		public void onParticleSystemStarted();
+		public void onParticleSystemStopped();
+	}
+	
+	private final Context context;
+	private final Host host;
+	
+	// Display states
+	private volatile boolean animating;
+	private volatile boolean display;
+	
+	// Display data
+	private int battery;
+	private volatile int decay;
+	private float scale;
+	private int width;
+	private int height;
+	
+	// Image assets
+	private BitmapCache bitmapCache;
+	private LayerCache layerCache;
+	
+	// Animation assets
+	private Bitmap cachedSinglePetal;
+	private volatile PetalTrack petalTrack;
+	private final Paint petalPaint;
+	
+	// Falling petals, one per scheduler slot
+	private final FallingPetal[] fallingPetals;
+	private final Random petalGenerator;
+	
+	// Transitions, run on the UI thread
+	private final TransitionScheduler transitions;
+	private final Handler transitionHandler;
+	
+	// Particle system
+	private ParticleSystem particleSystem;
+	private ParticleBudget particleBudget;
+	private PowerPolicy powerPolicy;
+	private volatile boolean powerChanged;
+	private ParticleRenderer particleRenderer;
+	private volatile boolean particleSystemRunning;
+	private int trajectory;
+	
+	// Allocation checking
+	private AllocationChecker drawAllocations;
+	private AllocationChecker stepAllocations;
+	
+	public RoseScene(Context context, Host host) {
+		this.context = context;
+		this.host = host;
+		
+		// Set some defaults
+		animating = false;
+		battery = 0;
+		decay = 0;
+		display = true;
+		scale = 1.0f;
+		width = 0;
+		height = 0;
+		
+		// Build the allocation checkers
+		drawAllocations = new AllocationChecker("draw");
+		stepAllocations = new AllocationChecker("step");
+		
+		// Build the image cache
+		bitmapCache = new BitmapCache(context.getResources());
+		layerCache = new LayerCache(bitmapCache);
+		
+		// Build the particle renderer
+		particleRenderer = new ParticleRenderer(Color.parseColor("#ff4540"), PARTICLE_RADIUS, ParticleBudget.MAX_PARTICLES);
+		
+		// Build the particle system, the host starts stepping it once it is ready
+		particleSystem = new ParticleSystem(calculateGenerationBox(), calculateMaxBox(), ParticleBudget.MAX_PARTICLES);
+		particleSystemRunning = true;
+		
+		// Start at the default budget, the host adjusts it as frames are measured
+		particleBudget = new ParticleBudget();
+		powerPolicy = new PowerPolicy();
+		applyParticleBudget();
+		
+		// Build the falling petals up front, they are reused for every drop
+		fallingPetals = new FallingPetal[MAX_FALLING_PETALS];
+		for (int i = 0; i < MAX_FALLING_PETALS; i++) {
+			fallingPetals[i] = new FallingPetal();
+		}
+		petalGenerator = new Random();
+		petalPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		
+		// Commands go through the scheduler, so none are lost mid-animation
+		transitions = new TransitionScheduler(MIN_DECAY, MAX_DECAY, MAX_FALLING_PETALS, transitionListener);
+		transitionHandler = new Handler();
+		
+		clearAnimationAssets();
+		allowAllocations();
+	}
+	
+	/*** External Commands ***/
+	
+	public void decay() {
+		transitions.decay(SystemClock.uptimeMillis());
+		scheduleTransitions();
+	}
+	
+	public void revert() {
+		transitions.revert(SystemClock.uptimeMillis());
+		scheduleTransitions();
+	}
+	
+	public void toggleDisplay() {
+		transitions.toggleDisplay(SystemClock.uptimeMillis());
+		scheduleTransitions();
+	}
+	
+	/**
+	 * Moves the particles on to the next trajectory. Particles already in
+	 * flight switch over on the next step.
+	 */
+	public void nextTrajectory() {
+		trajectory = (trajectory + 1) % TRAJECTORIES.length;
+		particleSystem.setTrajectory(TRAJECTORIES[trajectory]);
+	}
+	
+	/*** Lifecycle ***/
+	
+	/**
+	 * Lets go of the background thread and pending callbacks, so a host that
+	 * is going away doesn't keep the scene alive. Call resume() to carry on.
+	 */
+	public void release() {
+		transitionHandler.removeCallbacks(transitionUpdate);
+		bitmapCache.release();
+	}
+	
+	/**
+	 * Catches up on any transitions that came due while released.
+	 */
+	public void resume() {
+		transitions.update(SystemClock.uptimeMillis());
+		scheduleTransitions();
+	}
+	
+	/*** Transitions ***/
+	
+	private void scheduleTransitions() {
+		// Come back when the scheduler next has something to do
+		transitionHandler.removeCallbacks(transitionUpdate);
+		long deadline = transitions.getNextDeadline();
+		if (deadline != TransitionScheduler.NO_DEADLINE) {
+			transitionHandler.postAtTime(transitionUpdate, deadline);
+		}
+	}
+	
+	private final Runnable transitionUpdate = new Runnable() {
+		public void run() {
+			powerPolicy.recordWakeup();
+			transitions.update(SystemClock.uptimeMillis());
+			scheduleTransitions();
+		}
+	};
+	
+	// Applies each transition as the scheduler reaches it
+	private final TransitionScheduler.Listener transitionListener = new TransitionScheduler.Listener() {
+		public void onDropStarted(int slot, int level, long durationMillis) {
+			// Set the decay
+			decay = level;
+			allowAllocations();
+			
+			// Kill the particles if this is the last decay
+			if (decay == MAX_DECAY) {
+				stopParticleSystem();
+			}
+			
+			// Set up the animation
+			clearStaticAssets();
+			dropPetal(fallingPetals[slot], durationMillis);
+		}
+		
+		public void onDropFinished(int slot) {
+			FallingPetal petal = fallingPetals[slot];
+			petal.active = false;
+			if (petal.animator != null) {
+				petal.animator.cancel();
+				petal.animator = null;
+			}
+			
+			// Done once the last petal is down
+			if (transitions.getDropsInFlight() == 0) {
+				animating = false;
+				clearAnimationAssets();
+			}
+			
+			host.onSceneChanged();
+		}
+		
+		public void onReverted(int level) {
+			// Just set the decay
+			decay = level;
+			allowAllocations();
+			
+			// Clean out any animation
+			clearStaticAssets();
+			
+			// Start the particle system if it's stopped
+			if (display) {
+				startParticleSystem();
+			}
+			
+			host.onSceneChanged();
+		}
+		
+		public void onDisplayChanged(boolean value) {
+			display = value;
+			allowAllocations();
+			
+			// Start or stop the thread if we need to
+			if (display && decay != MAX_DECAY) {
+				// Fire up a new particle thread
+				startParticleSystem();
+			} else {
+				stopParticleSystem();
+			}
+			
+			host.onSceneChanged();
+		}
+	};
+	
+	/*** Animation ***/
+	
+	private void clearAnimationAssets() {
+		// The track is kept across drops, it only changes with the size
+		cachedSinglePetal = null;
+	}
+	
+	private void dropPetal(final FallingPetal petal, long durationMillis) {
+		// Give this petal its own way down, mirroring every other one
+		Random generator = petalGenerator;
+		petal.mirrored = decay % 2 != 0;
+		petal.spin = (generator.nextFloat() * 2.0f - 1.0f) * 45.0f;
+		petal.tilt = 0.25f + generator.nextFloat() * 0.5f;
+		petal.swayWidth = generator.nextFloat() * 12.0f * scale;
+		petal.swayCycles = 1.0f + generator.nextFloat() * 2.0f;
+		petal.fadeStart = 0.7f + generator.nextFloat() * 0.25f;
+		petal.progress = 0.0f;
+		petal.active = true;
+		animating = true;
+		
+		// Build the animation, the scheduler decides when the petal has landed
+		ValueAnimator animator = ValueAnimator.ofFloat(0.0f, 1.0f);
+		animator.setDuration(durationMillis);
+		animator.setInterpolator(PETAL_INTERPOLATOR);
+		
+		animator.addUpdateListener(new AnimatorUpdateListener() {
+			public void onAnimationUpdate(ValueAnimator animation) {
+				petal.progress = animation.getAnimatedFraction();
+				host.onSceneChanged();
+			}
+		});
+		
+		// Start the animation
+		petal.animator = animator;
+		animator.start();
+	}
+	
+	/*** Drawing ***/
+	
+	private void clearStaticAssets() {
+		// Get the next decay or revert ready, the layers follow the decay on their own
+		bitmapCache.preloadNeighbours(decay);
+	}
+	
+	public void draw(Canvas canvas, float alpha) {
+		long start = System.nanoTime();
+		int allocations = drawAllocations.begin();
+		
+		// Only draw if we are displaying
+		if (display) {
+			int currentDecay = decay;
+			
+			// Draw the stem over the background
+			long phase = Metrics.start();
+			layerCache.drawBackground(canvas, currentDecay);
+			DRAW_STEM.end(phase);
+			
+			// If animating, draw the falling petals
+			if (animating) {
+				phase = Metrics.start();
+				drawFallingPetals(canvas);
+				DRAW_FALLING_PETAL.end(phase);
+			}
+			
+			// Draw the particles
+			phase = Metrics.start();
+			particleRenderer.draw(canvas, particleSystem.getParticles(), alpha);
+			DRAW_PARTICLES.end(phase);
+			
+			// Draw the petal
+			phase = Metrics.start();
+			layerCache.drawPetals(canvas, currentDecay);
+			DRAW_PETALS.end(phase);
+		} else {
+			// Draw the background
+			canvas.drawColor(Color.BLACK);
+		}
+		
+		drawAllocations.end(allocations);
+		
+		// The budget needs the cost even when metrics are off
+		long end = System.nanoTime();
+		particleBudget.recordDraw(end - start);
+		DRAW.record(end - start);
+		DRAW_SPAN.record(start, end);
+	}
+	
+	private void drawFallingPetals(Canvas canvas) {
+		// Read once, the UI thread may replace it while we draw
+		PetalTrack track = petalTrack;
+		if (track == null) return;
+		
+		Bitmap singlePetal = getSinglePetal();
+		float left = singlePetal.getWidth() / -2;
+		float top = singlePetal.getHeight() * -1;
+		
+		for (int i = 0; i < fallingPetals.length; i++) {
+			FallingPetal petal = fallingPetals[i];
+			if (!petal.active) continue;
+			
+			float progress = petal.progress;
+			float sway = petal.swayWidth * (float) Math.sin(progress * petal.swayCycles * 2.0 * Math.PI);
+			
+			canvas.save();
+			
+			// Move along the track, turning with it and spinning on the way
+			canvas.translate(track.getX(progress) + sway, track.getY(progress));
+			canvas.rotate(track.getHeading(progress) * petal.tilt + petal.spin * progress);
+			if (petal.mirrored) {
+				canvas.scale(-1.0f, 1.0f);
+			}
+			
+			// Draw the appropriate rose
+			petalPaint.setAlpha(petal.getAlpha(progress));
+			canvas.drawBitmap(singlePetal, left, top, petalPaint);
+			
+			canvas.restore();
+		}
+	}
+	
+	private Bitmap getSinglePetal() {
+		// Read once, the UI thread may clear it while we draw
+		Bitmap singlePetal = cachedSinglePetal;
+		
+		if (singlePetal == null) {
+			singlePetal = bitmapCache.getSinglePetal();
+			cachedSinglePetal = singlePetal;
+		}
+		
+		return singlePetal;
+	}
+	
+	/*** Size and Input ***/
+	
+	public void setSize(int width, int height) {
+		this.width = width;
+		this.height = height;
+		
+		// Set up a new scale
+		float scaleX = (float) width / ROSE_WIDTH;
+		float scaleY = (float) height / ROSE_HEIGHT;
+		
+		scale = scaleX > scaleY ? scaleY : scaleX;
+		
+		// Images are decoded at the new scale from now on
+		bitmapCache.setScale(scale);
+		layerCache.invalidate();
+		clearStaticAssets();
+		cachedSinglePetal = null;
+		petalTrack = width > 0 && height > 0 ? new PetalTrack(width, height, PETAL_DEPTH) : null;
+		allowAllocations();
+		
+		// Reset the particleSystem
+		if (particleSystem != null) {
+			// Kill the old thread
+			stopParticleSystem();
+			
+			// Set up the new size
+			particleSystem.changeBoxes(calculateGenerationBox(), calculateMaxBox());
+			
+			// Fire up the new thread
+			startParticleSystem();
+		}
+	}
+	
+	public boolean onTouchEvent(MotionEvent event) {
+		if (event.getAction() == MotionEvent.ACTION_DOWN) {
+			// A touch in the top-left enabled discovery
+			if (event.getX() < 50.0f && event.getY() < 50.0f) {
+				// Become discoverable here
+				RoseActivity activity = (RoseActivity) context;
+				activity.ensureDiscoverable();
+				return true;
+			}
+			// A touch has ended, split the screen and change the decay for the stem
+			if (event.getX() < width / 2.0f) {
+				revert();
+				return true;
+			} else {
+				decay();
+				return true;
+			}
+		}
+		
+		// The event wasn't handled, so return false
+		return false;
+	}
+	
+	/*** Properties ***/
+	
+	public int getBattery() {
+		return battery;
+	}
+	
+	/**
+	 * The decay the rose is heading for, which the petals may not have
+	 * caught up with yet.
+	 */
+	public int getDecay() {
+		return transitions.getTargetDecay();
+	}
+	
+	public boolean getDisplay() {
+		return transitions.getTargetDisplay();
+	}
+	
+	public boolean isAnimating() {
+		return animating;
+	}
+	
+	public AllocationChecker getStepAllocations() {
+		return stepAllocations;
+	}
+	
+	public JSONObject getSerializedData() {
+		try {
+			return RoseProtocol.encodeJsonState(getDecay(), MAX_DECAY, getBattery(), getDisplay());
+		} catch (JSONException e) {
+			Log.d(TAG, "JSON creation failed", e);
+			return new JSONObject();
+		}
+	}
+	
+	public void setBattery(int value, boolean charging) {
+		battery = value;
+		
+		// The stepping thread picks up the new rates on its next step
+		if (powerPolicy.setBattery(value, charging)) powerChanged = true;
+	}
+	
+	private void allowAllocations() {
+		// Layers and animation assets are rebuilt on the next frames
+		drawAllocations.allowAllocations(GRACE_FRAMES);
+		stepAllocations.allowAllocations(GRACE_FRAMES);
+	}
+	
+	/*** Particle System ***/
+	
+	private Box calculateGenerationBox() {
+		// Center point is 50% down, 50% over
+		float centerX = width * 0.50f;
+		float centerY = height * 0.50f;
+		
+		// Box is 40px wide and 20px height
+		Box box = new Box();
+		box.left = centerX - 20.0f;
+		box.right = centerX + 20.0f;
+		box.top = centerY - 10.0f;
+		box.bottom = centerY + 10.0f;
+		
+		return box;
+	}
+	
+	private Box calculateMaxBox() {
+		Box box = new Box();
+		
+		// Box is as wide as the view
+		box.left = 0;
+		box.right= width;
+		
+		// Box starts 20% from the bottom
+		box.top = height * 0.95f;
+		
+		// Box stops 5% from the bottom
+		box.bottom = height * 0.98f;
+		
+		return box;
+	}
+	
+	public ParticleSystem getParticleSystem() {
+		return particleSystem;
+	}
+	
+	public ParticleBudget getParticleBudget() {
+		return particleBudget;
+	}
+	
+	/**
+	 * Measures a step and moves the budget if it's due. Only the thread that
+	 * steps the particles may call this.
+	 */
+	public void recordStep(long start, long end) {
+		particleBudget.recordStep(end - start);
+		
+		boolean changed = particleBudget.update(end);
+		if (powerChanged) {
+			powerChanged = false;
+			changed = true;
+		}
+		
+		if (changed) applyParticleBudget();
+	}
+	
+	private void applyParticleBudget() {
+		// Longer steps on a draining battery, without slowing the particles
+		particleSystem.setBudget(particleBudget.getParticles(), particleBudget.getSpawnRate());
+		particleSystem.setStepMillis(powerPolicy.scaleStepMillis(particleBudget.getStepMillis()));
+	}
+	
+	public PowerPolicy getPowerPolicy() {
+		return powerPolicy;
+	}
+	
+	public boolean isParticleSystemRunning() {
+		return particleSystemRunning;
+	}
+	
+	private void startParticleSystem() {
+		particleSystemRunning = true;
+		host.onParticleSystemStarted();
+	}
+	
+	private void stopParticleSystem() {
+		particleSystemRunning = false;
+		host.onParticleSystemStopped();
+	}
+	
+	/**
+	 * One petal on its way down. Everything but progress is set on the UI
+	 * thread before the petal is made active, and only read while drawing.
+	 */
+	private static class FallingPetal {
+		// Variation, picked per drop
+		private boolean mirrored;
+		private float spin;
+		private float tilt;
+		private float swayWidth;
+		private float swayCycles;
+		private float fadeStart;
+		
+		private volatile float progress;
+		private volatile boolean active;
+		
+		// Only touched on the UI thread
+		private ValueAnimator animator;
+		
+		public int getAlpha(float progress) {
+			// Opaque until the fade starts, then out by the end of the drop
+			if (progress <= fadeStart) return 255;
+			
+			return (int) (255 * (1.0f - progress) / (1.0f - fadeStart));
+		}
+	}
+}
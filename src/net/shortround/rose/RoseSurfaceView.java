@@ -0,0 +1,295 @@
+package net.shortround.rose;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.MotionEvent;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.view.View;
+
+/**
+ * Alternate backend for the rose that renders on its own thread. Frames are
+ * paced by Choreographer, the particle system is stepped on a fixed timestep
+ * and drawn interpolated between its last two steps, and nothing is drawn at
+ * all while the scene is not changing.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class RoseSurfaceView extends SurfaceView implements SurfaceHolder.Callback, RoseScene.Host {
+	// Debug
+	private static final String TAG = "RoseSurfaceView";
+	
+	// Simulation constants
+	private static final long MAX_FRAME_NANOS = 250000000L;
+	
+	// Instrumentation
+	private static final Trace.Span FRAME = Trace.span("frame");
+	private static final Trace.Span INVALIDATE = Trace.span("invalidate");
+	
+	// The rose being displayed
+	private RoseScene scene;
+	
+	// Rendering
+	private RenderThread renderThread;
+	
+	public RoseSurfaceView(Context context) {
+		super(context);
+		
+		// Build the scene
+		scene = new RoseScene(context, this);
+		
+		// Listen for the surface
+		getHolder().addCallback(this);
+	}
+	
+	/*** Surface Callbacks ***/
+	
+	public void surfaceCreated(SurfaceHolder holder) {
+		// Pick up where we left off when the surface went
+		scene.resume();
+		
+		// Fire off the render thread
+		renderThread = new RenderThread(holder);
+		renderThread.start();
+	}
+	
+	public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+		scene.setSize(width, height);
+		onSceneChanged();
+	}
+	
+	public void surfaceDestroyed(SurfaceHolder holder) {
+		// The surface can't be touched after we return, so wait for the thread
+		if (renderThread != null) {
+			renderThread.cancel();
+			renderThread = null;
+		}
+		
+		// Nothing can be seen, so let the scene's threads go too
+		scene.release();
+	}
+	
+	/*** View Callbacks ***/
+	
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		
+		// The view is done with, in case the surface went first
+		scene.release();
+	}
+	
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		// Switch back to Low Profile mode, just in case
+		setSystemUiVisibility(View.SYSTEM_UI_FLAG_LOW_PROFILE);
+		
+		return scene.onTouchEvent(event);
+	}
+	
+	/*** Scene Callbacks ***/
+	
+	public void onSceneChanged() {
+		RenderThread thread = renderThread;
+		if (thread != null) thread.requestRender();
+	}
+	
+	public void onParticleSystemStarted() {
+		onSceneChanged();
+	}
+	
+	public void onParticleSystemStopped() {
+		onSceneChanged();
+	}
+	
+	/*** Properties ***/
+	
+	public RoseScene getScene() {
+		return scene;
+	}
+	
+	private class RenderThread extends HandlerThread implements Choreographer.FrameCallback {
+		private final SurfaceHolder holder;
+		private Handler handler;
+		private Choreographer choreographer;
+		
+		// Owned by the render thread
+		private boolean frameScheduled;
+		private boolean frameDelayed;
+		private boolean stepping;
+		private long lastFrameNanos;
+		private long accumulatorNanos;
+		
+		// Set from other threads
+		private volatile boolean dirty;
+		private volatile long requestedNanos;
+		private volatile boolean running;
+		
+		private final Runnable frameRequest = new Runnable() {
+			public void run() {
+				scheduleFrame();
+			}
+		};
+		
+		public RenderThread(SurfaceHolder holder) {
+			super("RenderThread", Process.THREAD_PRIORITY_DISPLAY);
+			this.holder = holder;
+			dirty = true;
+			running = true;
+		}
+		
+		@Override
+		protected void onLooperPrepared() {
+			Log.d(TAG, "BEGIN renderThread");
+			
+			// The choreographer belongs to this thread's looper
+			choreographer = Choreographer.getInstance();
+			scheduleFrame();
+		}
+		
+		public void doFrame(long frameTimeNanos) {
+			frameScheduled = false;
+			frameDelayed = false;
+			if (!running) return;
+			
+			scene.getPowerPolicy().recordWakeup();
+			
+			long start = Metrics.start();
+			
+			// Work out how much time the simulation has to catch up on
+			long elapsed = lastFrameNanos == 0 ? 0 : frameTimeNanos - lastFrameNanos;
+			if (elapsed > MAX_FRAME_NANOS) elapsed = MAX_FRAME_NANOS;
+			lastFrameNanos = frameTimeNanos;
+			
+			ParticleSystem particleSystem = scene.getParticleSystem();
+			boolean changed = dirty;
+			dirty = false;
+			float alpha = 1.0f;
+			
+			if (scene.isParticleSystemRunning()) {
+				// Start from an empty system when the particles come back
+				if (!stepping) {
+					particleSystem.start();
+					stepping = true;
+					accumulatorNanos = 0;
+				}
+				
+				// Step on a fixed timestep, carrying the remainder
+				AllocationChecker stepAllocations = scene.getStepAllocations();
+				int allocations = stepAllocations.begin();
+				
+				// The step length follows the budget
+				long stepNanos = particleSystem.getStepMillis() * 1000000L;
+				
+				accumulatorNanos += elapsed;
+				while (accumulatorNanos >= stepNanos) {
+					long stepStart = System.nanoTime();
+					particleSystem.step();
+					scene.recordStep(stepStart, System.nanoTime());
+					accumulatorNanos -= stepNanos;
+					stepNanos = particleSystem.getStepMillis() * 1000000L;
+				}
+				
+				stepAllocations.end(allocations);
+				alpha = (float) accumulatorNanos / stepNanos;
+				
+				// Particles move between steps, so always draw
+				changed = true;
+			} else if (stepping) {
+				// Clear the particles and draw once more without them
+				particleSystem.stop();
+				stepping = false;
+				changed = true;
+			}
+			
+			if (changed) {
+				// Time from the first request to this frame's draw
+				INVALIDATE.record(requestedNanos, System.nanoTime());
+				requestedNanos = 0;
+				
+				drawFrame(alpha);
+			}
+			
+			// Keep going while anything moves, as often as the battery allows,
+			// otherwise park until a request comes in
+			if (dirty) {
+				scheduleFrame();
+			} else if (stepping || scene.isAnimating()) {
+				scheduleFrameAfter(scene.getPowerPolicy().getFrameIntervalMillis());
+			} else {
+				lastFrameNanos = 0;
+			}
+			
+			FRAME.end(start);
+		}
+		
+		private void drawFrame(float alpha) {
+			Canvas canvas = holder.lockCanvas();
+			if (canvas == null) return;
+			
+			try {
+				scene.draw(canvas, alpha);
+			} finally {
+				holder.unlockCanvasAndPost(canvas);
+			}
+		}
+		
+		public void requestRender() {
+			dirty = true;
+			if (requestedNanos == 0) requestedNanos = Metrics.start();
+			
+			Handler h = handler;
+			if (h != null) h.post(frameRequest);
+		}
+		
+		private void scheduleFrame() {
+			if (!running) return;
+			if (frameScheduled && !frameDelayed) return;
+			
+			// A request doesn't wait out a slowed down frame
+			if (frameScheduled) choreographer.removeFrameCallback(this);
+			
+			frameScheduled = true;
+			frameDelayed = false;
+			choreographer.postFrameCallback(this);
+		}
+		
+		private void scheduleFrameAfter(long delayMillis) {
+			if (delayMillis <= 0) {
+				scheduleFrame();
+				return;
+			}
+			if (frameScheduled || !running) return;
+			
+			frameScheduled = true;
+			frameDelayed = true;
+			choreographer.postFrameCallbackDelayed(this, delayMillis);
+		}
+		
+		@Override
+		public synchronized void start() {
+			super.start();
+			handler = new Handler(getLooper());
+		}
+		
+		public void cancel() {
+			running = false;
+			
+			// Stop the looper and wait for the last frame to finish
+			quit();
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Log.e(TAG, "Interrupted waiting for the render thread", e);
+			}
+			
+			Log.d(TAG, "END renderThread");
+		}
+	}
+}
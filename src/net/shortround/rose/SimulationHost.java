@@ -0,0 +1,63 @@
+package net.shortround.rose;
+
+/**
+ * Runs a simulation while its view wants it and can use it. The scene starts
+ * and stops the simulation, on a resize or a display toggle, and the view
+ * says whether it is attached and visible; steps are only taken when all
+ * three agree. Detaching pauses rather than shutting down, so a view that
+ * comes back carries on where it left off. Every call is made under the
+ * host's lock, so a pause for a hidden view can't slip in behind a start.
+ */
+public class SimulationHost {
+	private final SimulationScheduler scheduler;
+	
+	// Guarded by this
+	private boolean attached;
+	private boolean visible;
+	
+	public SimulationHost(SimulationScheduler scheduler) {
+		this.scheduler = scheduler;
+		
+		// Shown until the window says otherwise, but not attached until it is
+		visible = true;
+	}
+	
+	/*** Scene ***/
+	
+	/**
+	 * Starts the simulation from scratch, paused if it can't be seen.
+	 */
+	public synchronized void start() {
+		scheduler.start();
+		if (!canRun()) scheduler.pause();
+	}
+	
+	public synchronized void stop() {
+		scheduler.stop();
+	}
+	
+	/*** View ***/
+	
+	public synchronized void setAttached(boolean value) {
+		attached = value;
+		update();
+	}
+	
+	public synchronized void setVisible(boolean value) {
+		visible = value;
+		update();
+	}
+	
+	private void update() {
+		// Only a started simulation is paused or resumed, a stopped one stays stopped
+		if (canRun()) {
+			scheduler.resume();
+		} else {
+			scheduler.pause();
+		}
+	}
+	
+	private boolean canRun() {
+		return attached && visible;
+	}
+}
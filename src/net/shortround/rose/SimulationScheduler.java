@@ -0,0 +1,205 @@
+package net.shortround.rose;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Steps a simulation on one long-lived thread. Starting, stopping, pausing
+ * and resuming only flip an atomic state and queue a preallocated task, so
+ * they are safe from any thread and take effect in the order they were
+ * called. The stepping thread is the only one that ever touches the
+ * simulation, and it keeps at most one step scheduled, so two steps can
+ * never run at once however quickly the state is flipped. Steps repeat on a
+ * single fixed delay task, which is only replaced when the step length
+ * changes, so a steady run schedules nothing new per step.
+ *
+ * A scheduler left paused or stopped lets its thread go after a while and
+ * makes another when it next has work, so one that is never shut down, like
+ * a detached view's, holds on to nothing.
+ */
+public class SimulationScheduler {
+	// Lifecycle states
+	public static final int STATE_STOPPED = 0;
+	public static final int STATE_RUNNING = 1;
+	public static final int STATE_PAUSED = 2;
+	public static final int STATE_SHUTDOWN = 3;
+	
+	// How long the stepping thread waits for work before it's let go
+	public static final long IDLE_MILLIS = 10000;
+	
+	/**
+	 * The work being scheduled. Every call is made on the stepping thread.
+	 */
+	public interface Simulation {
+		// Begin from scratch
+		public void onStart();
+		
+		// Clear everything, nothing will be stepped until the next start
+		public void onStop();
+		
+		// Take one step and return the milliseconds until the next
+		public long step();
+	}
+	
+	private final Simulation simulation;
+	private final ScheduledThreadPoolExecutor executor;
+	private final AtomicInteger state;
+	private final AtomicBoolean restart;
+	
+	// Owned by the stepping thread
+	private ScheduledFuture<?> pendingStep;
+	private long stepDelay;
+	private boolean stopped;
+	
+	// Statistics
+	private volatile long steps;
+	
+	public SimulationScheduler(Simulation simulation, final String threadName) {
+		this.simulation = simulation;
+		
+		// One thread at most, never two at once
+		executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, threadName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.setKeepAliveTime(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+		executor.allowCoreThreadTimeOut(true);
+		state = new AtomicInteger(STATE_STOPPED);
+		restart = new AtomicBoolean();
+		stopped = true;
+	}
+	
+	/*** Lifecycle ***/
+	
+	/**
+	 * Starts the simulation from scratch, even if it is already running.
+	 */
+	public void start() {
+		restart.set(true);
+		if (moveTo(STATE_RUNNING)) submit();
+	}
+	
+	/**
+	 * Stops stepping and clears the simulation.
+	 */
+	public void stop() {
+		if (moveTo(STATE_STOPPED)) submit();
+	}
+	
+	/**
+	 * Stops stepping but keeps the simulation as it is.
+	 */
+	public void pause() {
+		if (state.compareAndSet(STATE_RUNNING, STATE_PAUSED)) submit();
+	}
+	
+	/**
+	 * Carries on stepping after a pause.
+	 */
+	public void resume() {
+		if (state.compareAndSet(STATE_PAUSED, STATE_RUNNING)) submit();
+	}
+	
+	/**
+	 * Stops for good and lets the thread go.
+	 */
+	public void shutdown() {
+		if (state.getAndSet(STATE_SHUTDOWN) == STATE_SHUTDOWN) return;
+		
+		executor.shutdownNow();
+	}
+	
+	private boolean moveTo(int value) {
+		// Nothing comes back from a shutdown
+		while (true) {
+			int current = state.get();
+			if (current == STATE_SHUTDOWN) return false;
+			if (state.compareAndSet(current, value)) return true;
+		}
+	}
+	
+	private void submit() {
+		try {
+			executor.execute(reconcile);
+		} catch (RejectedExecutionException e) {
+			// Shut down in the meantime
+		}
+	}
+	
+	/*** Stepping Thread ***/
+	
+	// Brings the stepping thread in line with the latest state
+	private final Runnable reconcile = new Runnable() {
+		public void run() {
+			// Whatever happens next, the old step is no longer wanted
+			if (pendingStep != null) {
+				pendingStep.cancel(false);
+				pendingStep = null;
+			}
+			
+			int current = state.get();
+			if (current == STATE_STOPPED || current == STATE_SHUTDOWN) {
+				if (!stopped) {
+					simulation.onStop();
+					stopped = true;
+				}
+				return;
+			}
+			
+			if (restart.getAndSet(false)) {
+				simulation.onStart();
+				stopped = false;
+			}
+			
+			if (current == STATE_RUNNING) scheduleSteps(0, stepDelay);
+		}
+	};
+	
+	private final Runnable step = new Runnable() {
+		public void run() {
+			// A pause or stop may have got in first
+			if (state.get() != STATE_RUNNING) return;
+			
+			long delay = simulation.step();
+			steps++;
+			
+			// The running task carries on by itself unless the length changed
+			if (delay != stepDelay) scheduleSteps(delay, delay);
+		}
+	};
+	
+	// Replaces the repeating step task, only ever from the stepping thread
+	private void scheduleSteps(long initialDelay, long delay) {
+		if (pendingStep != null) pendingStep.cancel(false);
+		
+		stepDelay = delay;
+		try {
+			pendingStep = executor.scheduleWithFixedDelay(step, initialDelay, Math.max(delay, 1), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shut down in the meantime
+			pendingStep = null;
+		}
+	}
+	
+	/*** Properties ***/
+	
+	public int getState() {
+		return state.get();
+	}
+	
+	public boolean isRunning() {
+		return state.get() == STATE_RUNNING;
+	}
+	
+	public long getSteps() {
+		return steps;
+	}
+}
@@ -0,0 +1,268 @@
+package net.shortround.rose;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reassembles commands from a byte stream. The stream may split a command
+ * across reads or run several together, so bytes are kept in a ring buffer
+ * until a whole command is there, and each command is handed on exactly
+ * once. Binary frames are recognised by their magic byte; anything else is
+ * matched greedily against the text command keywords, so "decaydecay"
+ * is two decays.
+ */
+public class StreamFramer {
+	// Default ring size, enough for a burst of taps
+	public static final int DEFAULT_CAPACITY = 4096;
+	
+	// Text commands and the opcodes they stand for
+	private static final byte[][] KEYWORDS = {
+		"decay".getBytes(),
+		"revert".getBytes(),
+		"display".getBytes(),
+		"data".getBytes(),
+		"stats".getBytes(),
+		"enablestats".getBytes(),
+		"disablestats".getBytes(),
+		"trace".getBytes(),
+		"trajectory".getBytes()
+	};
+	private static final int[] KEYWORD_OPCODES = {
+		RoseProtocol.OP_DECAY,
+		RoseProtocol.OP_REVERT,
+		RoseProtocol.OP_DISPLAY,
+		RoseProtocol.OP_DATA,
+		RoseProtocol.OP_STATS,
+		RoseProtocol.OP_ENABLE_STATS,
+		RoseProtocol.OP_DISABLE_STATS,
+		RoseProtocol.OP_TRACE,
+		RoseProtocol.OP_TRAJECTORY
+	};
+	
+	// Instrumentation, shared by every transport
+	private static final Metrics.Counter BYTES_READ = Metrics.counter("transport.bytes_read");
+	private static final Metrics.Counter COMMANDS = Metrics.counter("transport.commands");
+	
+	// Results of matching at the read position
+	private static final int MATCH_NONE = -1;
+	private static final int MATCH_PARTIAL = -2;
+	
+	/**
+	 * Receives each complete command. Text commands have sequence 0.
+	 */
+	public interface Listener {
+		public void onCommand(int opcode, int sequence);
+	}
+	
+	private final byte[] ring;
+	private final ByteBuffer ringBuffer;
+	private final int mask;
+	
+	// Absolute stream positions, masked to index the ring
+	private long readPosition;
+	private long writePosition;
+	
+	// Statistics
+	private long commands;
+	private long discarded;
+	
+	public StreamFramer() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	public StreamFramer(int capacity) {
+		// Round up to a power of two so positions can be masked
+		int size = Integer.highestOneBit(Math.max(capacity, RoseProtocol.HEADER_LENGTH) - 1) << 1;
+		
+		ring = new byte[size];
+		ringBuffer = ByteBuffer.wrap(ring);
+		mask = size - 1;
+	}
+	
+	/*** Filling ***/
+	
+	/**
+	 * Reads once from the stream straight into the free space of the ring.
+	 * Returns the number of bytes read, or -1 at the end of the stream.
+	 */
+	public int read(InputStream inputStream) throws IOException {
+		int start = (int) (writePosition & mask);
+		int length = contiguousFree();
+		
+		int bytes = inputStream.read(ring, start, length);
+		if (bytes > 0) {
+			writePosition += bytes;
+			BYTES_READ.add(bytes);
+		}
+		
+		return bytes;
+	}
+	
+	/**
+	 * Reads once from a channel straight into the free space of the ring.
+	 * Returns the number of bytes read, which may be 0 for a non-blocking
+	 * channel, or -1 at the end of the stream.
+	 */
+	public int read(ReadableByteChannel channel) throws IOException {
+		int start = (int) (writePosition & mask);
+		int length = contiguousFree();
+		
+		ringBuffer.limit(start + length);
+		ringBuffer.position(start);
+		
+		int bytes = channel.read(ringBuffer);
+		if (bytes > 0) {
+			writePosition += bytes;
+			BYTES_READ.add(bytes);
+		}
+		
+		return bytes;
+	}
+	
+	// Free space after the write position, up to the end of the array
+	private int contiguousFree() {
+		int free = ring.length - available();
+		if (free == 0) {
+			// Only reachable if nothing could be matched, so make room
+			discard(1);
+			free = 1;
+		}
+		
+		int start = (int) (writePosition & mask);
+		return Math.min(free, ring.length - start);
+	}
+	
+	/**
+	 * Copies bytes into the ring, dropping the oldest if there's no room.
+	 */
+	public void write(byte[] buffer, int offset, int length) {
+		for (int i = 0; i < length; i++) {
+			if (available() == ring.length) discard(1);
+			
+			ring[(int) (writePosition & mask)] = buffer[offset + i];
+			writePosition++;
+		}
+	}
+	
+	/*** Draining ***/
+	
+	/**
+	 * Hands every complete command in the ring to the listener, in order,
+	 * and returns how many there were. A partial command stays buffered.
+	 */
+	public int drain(Listener listener) {
+		int count = 0;
+		
+		while (available() > 0) {
+			int first = byteAt(0);
+			
+			if (first == RoseProtocol.MAGIC) {
+				int consumed = drainFrame(listener);
+				if (consumed == MATCH_PARTIAL) break;
+				if (consumed > 0) count++;
+				continue;
+			}
+			
+			int keyword = matchKeyword();
+			if (keyword == MATCH_PARTIAL) break;
+			
+			if (keyword == MATCH_NONE) {
+				// Separators and noise between commands
+				discard(1);
+				continue;
+			}
+			
+			skip(KEYWORDS[keyword].length);
+			listener.onCommand(KEYWORD_OPCODES[keyword], 0);
+			count++;
+		}
+		
+		commands += count;
+		COMMANDS.add(count);
+		return count;
+	}
+	
+	// Returns 1 for a delivered frame, 0 for a skipped one, or MATCH_PARTIAL
+	private int drainFrame(Listener listener) {
+		int available = available();
+		if (available < RoseProtocol.HEADER_LENGTH) return MATCH_PARTIAL;
+		
+		int version = byteAt(1);
+		int opcode = byteAt(2);
+		int sequence = (byteAt(3) << 8) | byteAt(4);
+		int payloadLength = (byteAt(5) << 8) | byteAt(6);
+		int frameLength = RoseProtocol.HEADER_LENGTH + payloadLength;
+		
+		// A frame that could never fit must be a false magic byte
+		if (frameLength > ring.length) {
+			discard(1);
+			return 0;
+		}
+		
+		if (available < frameLength) return MATCH_PARTIAL;
+		
+		skip(frameLength);
+		
+		// Frames from a newer protocol are skipped whole
+		if (version > RoseProtocol.VERSION) {
+			discarded += frameLength;
+			return 0;
+		}
+		
+		listener.onCommand(opcode, sequence);
+		return 1;
+	}
+	
+	private int matchKeyword() {
+		int available = available();
+		
+		for (int k = 0; k < KEYWORDS.length; k++) {
+			byte[] keyword = KEYWORDS[k];
+			int length = Math.min(keyword.length, available);
+			
+			int i = 0;
+			while (i < length && byteAt(i) == keyword[i]) i++;
+			
+			if (i == keyword.length) return k;
+			if (i == available) return MATCH_PARTIAL;
+		}
+		
+		return MATCH_NONE;
+	}
+	
+	/*** Utilities ***/
+	
+	public int available() {
+		return (int) (writePosition - readPosition);
+	}
+	
+	private int byteAt(int index) {
+		return ring[(int) ((readPosition + index) & mask)] & 0xFF;
+	}
+	
+	private void skip(int count) {
+		readPosition += count;
+	}
+	
+	private void discard(int count) {
+		readPosition += count;
+		discarded += count;
+	}
+	
+	/*** Properties ***/
+	
+	public long getCommands() {
+		return commands;
+	}
+	
+	public long getDiscarded() {
+		return discarded;
+	}
+	
+	public void reset() {
+		readPosition = 0;
+		writePosition = 0;
+	}
+}
@@ -0,0 +1,480 @@
+package net.shortround.rose;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves remotes over TCP, for Wi-Fi remotes and for load testing on a
+ * plain JVM. One selector thread accepts, reads and writes for every
+ * remote; other threads only queue writes and wake it up. If the port can't
+ * be bound the transport backs off and the selector thread keeps trying,
+ * the same way BluetoothService does when the adapter won't listen.
+ */
+public class TcpTransport implements Transport {
+	// Remotes served at once
+	public static final int MAX_CLIENTS = 8;
+	
+	// Keep client ids small enough to share a message argument
+	private static final int CLIENT_ID_MASK = 0x7FFF;
+	
+	private final int requestedPort;
+	private final CopyOnWriteArrayList<Client> clients;
+	private final ConcurrentLinkedQueue<Client> pendingWrites;
+	private final TransportMetrics metrics;
+	private final ConnectionStateMachine stateMachine;
+	
+	private volatile Listener listener;
+	private volatile int port;
+	
+	// Write queue settings
+	private volatile int writePolicy = WRITE_DROP_OLDEST;
+	private volatile long writeTimeoutMillis = 100;
+	
+	// Owned by the selector thread once started
+	private volatile Selector selector;
+	private ServerSocketChannel serverChannel;
+	private SelectorThread selectorThread;
+	private int nextClientId;
+	private long relistenNanos;
+	
+	/**
+	 * Listens on the given port when started, or on any free port for 0.
+	 */
+	public TcpTransport(int port) {
+		requestedPort = port;
+		clients = new CopyOnWriteArrayList<Client>();
+		pendingWrites = new ConcurrentLinkedQueue<Client>();
+		metrics = new TransportMetrics();
+		
+		stateMachine = new ConnectionStateMachine(new ConnectionStateMachine.Listener() {
+			public void onStateChanged(int oldState, int newState) {
+				// Tell the listener the state has changed
+				Listener l = listener;
+				if (l != null) l.onStateChanged(newState);
+			}
+		});
+	}
+	
+	private void setState(int value) {
+		stateMachine.transition(value);
+	}
+	
+	public void setListener(Listener value) {
+		listener = value;
+	}
+	
+	public int getState() {
+		return stateMachine.getState();
+	}
+	
+	/**
+	 * The port actually listened on, once started.
+	 */
+	public int getPort() {
+		return port;
+	}
+	
+	public synchronized void start() {
+		if (selectorThread != null) {
+			if (selectorThread.isRunning()) return;
+			
+			// The last selector thread died, clear up after it and go again
+			selectorThread.cancel();
+			selectorThread = null;
+		}
+		
+		try {
+			selector = Selector.open();
+		} catch (IOException e) {
+			// Stay stopped, the next start() tries again
+			return;
+		}
+		
+		// Try straight away, a failure backs off rather than throwing
+		setState(STATE_LISTEN);
+		stateMachine.resetBackoff();
+		listen();
+		
+		// Fire off the selector thread
+		selectorThread = new SelectorThread();
+		selectorThread.start();
+	}
+	
+	public synchronized void stop() {
+		if (selectorThread == null) return;
+		
+		// Wake the selector and wait for it to close everything
+		selectorThread.cancel();
+		selectorThread = null;
+		
+		setState(STATE_NONE);
+	}
+	
+	/*** Listening ***/
+	
+	// Binds the port, or backs off if it can't be had. Only called from start()
+	// before the selector thread runs, and from the selector thread after.
+	private boolean listen() {
+		ServerSocketChannel channel = null;
+		try {
+			channel = ServerSocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setReuseAddress(true);
+			channel.socket().bind(new InetSocketAddress(requestedPort));
+			channel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			closeQuietly(channel);
+			
+			if (clients.isEmpty()) setState(STATE_BACKOFF);
+			relistenNanos = System.nanoTime() + stateMachine.nextBackoffMillis() * 1000000L;
+			return false;
+		}
+		
+		serverChannel = channel;
+		port = channel.socket().getLocalPort();
+		
+		// Listening works again, so start over with short waits
+		stateMachine.resetBackoff();
+		if (clients.isEmpty()) setState(STATE_LISTEN);
+		return true;
+	}
+	
+	// How long the selector may sleep before listening should be tried again
+	private long getRelistenTimeout() {
+		if (serverChannel != null) return 0;
+		
+		if (System.nanoTime() - relistenNanos >= 0 && listen()) return 0;
+		
+		// Never 0, which would wait forever
+		return Math.max(1, (relistenNanos - System.nanoTime()) / 1000000L);
+	}
+	
+	/*** Writing ***/
+	
+	public void write(byte[] out) {
+		for (Client client : clients) {
+			client.enqueue(out);
+		}
+	}
+	
+	public void write(int clientId, byte[] out) {
+		Client client = getClient(clientId);
+		if (client != null) client.enqueue(out);
+	}
+	
+	public void broadcast(byte[] binary, byte[] text) {
+		for (Client client : clients) {
+			byte[] out = client.binaryProtocol ? binary : text;
+			if (out != null) client.enqueue(out);
+		}
+	}
+	
+	public void setWritePolicy(int policy, long timeoutMillis) {
+		writePolicy = policy;
+		writeTimeoutMillis = timeoutMillis;
+	}
+	
+	/*** Clients ***/
+	
+	public void setBinaryProtocol(int clientId) {
+		Client client = getClient(clientId);
+		if (client != null) client.binaryProtocol = true;
+	}
+	
+	public boolean isBinaryProtocol(int clientId) {
+		Client client = getClient(clientId);
+		return client != null && client.binaryProtocol;
+	}
+	
+	public int getClientCount() {
+		return clients.size();
+	}
+	
+	public int getClientCount(boolean binaryProtocol) {
+		int count = 0;
+		for (Client client : clients) {
+			if (client.binaryProtocol == binaryProtocol) count++;
+		}
+		
+		return count;
+	}
+	
+	public TransportMetrics getMetrics() {
+		return metrics;
+	}
+	
+	private Client getClient(int clientId) {
+		for (Client client : clients) {
+			if (client.clientId == clientId) return client;
+		}
+		
+		return null;
+	}
+	
+	/*** Selector Thread ***/
+	
+	private void accept() {
+		SocketChannel channel = null;
+		Client client;
+		try {
+			channel = serverChannel.accept();
+			if (channel == null) return;
+			
+			// Full, turn the remote away
+			if (clients.size() >= MAX_CLIENTS) {
+				channel.close();
+				return;
+			}
+			
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			
+			client = new Client((nextClientId + 1) & CLIENT_ID_MASK, channel);
+			client.key = channel.register(selector, SelectionKey.OP_READ, client);
+		} catch (IOException e) {
+			// Only this remote is lost, keep serving the rest
+			closeQuietly(channel);
+			return;
+		}
+		
+		nextClientId = client.clientId;
+		clients.add(client);
+		
+		setState(STATE_CONNECTED);
+		
+		// Let the remote have the state straight away
+		Listener l = listener;
+		if (l != null) l.onConnected(client.clientId);
+	}
+	
+	private void connectionLost(Client client) {
+		client.close();
+		
+		if (clients.remove(client)) {
+			Listener l = listener;
+			if (l != null) l.onConnectionLost(client.clientId);
+			
+			// Go back to listening once the last remote has gone
+			if (clients.isEmpty() && getState() == STATE_CONNECTED) setState(STATE_LISTEN);
+		}
+	}
+	
+	private void closeQuietly() {
+		for (Client client : clients) {
+			client.close();
+		}
+		clients.clear();
+		pendingWrites.clear();
+		
+		closeQuietly(serverChannel);
+		
+		// Older platforms' selectors aren't Closeable
+		try {
+			if (selector != null) selector.close();
+		} catch (IOException e) {
+			// Nothing more to do
+		}
+		
+		serverChannel = null;
+		selector = null;
+	}
+	
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			if (closeable != null) closeable.close();
+		} catch (IOException e) {
+			// Nothing more to do
+		}
+	}
+	
+	private class SelectorThread extends Thread {
+		private volatile boolean running;
+		
+		public SelectorThread() {
+			super("TcpTransport");
+			setDaemon(true);
+			running = true;
+		}
+		
+		public void run() {
+			try {
+				while (running) {
+					selector.select(getRelistenTimeout());
+					
+					// Turn on write interest for remotes with something queued
+					Client pending;
+					while ((pending = pendingWrites.poll()) != null) {
+						if (pending.key.isValid()) {
+							pending.key.interestOps(pending.key.interestOps() | SelectionKey.OP_WRITE);
+						}
+					}
+					
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						
+						if (!key.isValid()) continue;
+						
+						if (key.isAcceptable()) {
+							accept();
+							continue;
+						}
+						
+						Client client = (Client) key.attachment();
+						try {
+							if (key.isReadable()) client.read();
+							if (key.isValid() && key.isWritable()) client.flush();
+						} catch (IOException e) {
+							connectionLost(client);
+						}
+					}
+				}
+			} catch (IOException e) {
+				// The selector itself failed, nothing more can be served
+			} finally {
+				closeQuietly();
+				
+				// Dying on our own, rather than being stopped, leaves the
+				// transport stopped so that start() can bring it back
+				if (running) {
+					running = false;
+					setState(STATE_NONE);
+				}
+			}
+		}
+		
+		public boolean isRunning() {
+			return running;
+		}
+		
+		public void cancel() {
+			running = false;
+			
+			Selector s = selector;
+			if (s != null) s.wakeup();
+			
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * One connected remote. Everything but enqueue() runs on the selector
+	 * thread.
+	 */
+	private class Client implements StreamFramer.Listener {
+		private final int clientId;
+		private final SocketChannel channel;
+		private final StreamFramer framer;
+		private final WriteQueue queue;
+		private final AtomicBoolean writeRequested;
+		
+		private SelectionKey key;
+		private volatile boolean binaryProtocol;
+		
+		// The write in progress and when it started
+		private ByteBuffer current;
+		private long currentStart;
+		
+		public Client(int clientId, SocketChannel channel) {
+			this.clientId = clientId;
+			this.channel = channel;
+			
+			framer = new StreamFramer();
+			queue = new WriteQueue(metrics);
+			writeRequested = new AtomicBoolean();
+			
+			// Every remote starts out on the text protocol
+			binaryProtocol = false;
+		}
+		
+		public void read() throws IOException {
+			// Read until the channel is drained, passing on every whole command
+			int bytes;
+			while ((bytes = framer.read(channel)) > 0) {
+				framer.drain(this);
+			}
+			
+			if (bytes < 0) throw new IOException("End of stream");
+		}
+		
+		public void onCommand(int opcode, int sequence) {
+			// Keepalives are answered here and go no further
+			if (opcode == RoseProtocol.OP_PING) {
+				enqueue(RoseProtocol.encode(RoseProtocol.OP_PONG, sequence));
+				return;
+			}
+			if (opcode == RoseProtocol.OP_PONG) return;
+			
+			Listener l = listener;
+			if (l != null) l.onCommand(clientId, opcode, sequence);
+		}
+		
+		public void enqueue(byte[] buffer) {
+			queue.offer(buffer, writePolicy, writeTimeoutMillis);
+			requestWrite();
+		}
+		
+		private void requestWrite() {
+			// Hand the remote to the selector thread once per batch of writes
+			if (!writeRequested.compareAndSet(false, true)) return;
+			
+			pendingWrites.offer(this);
+			
+			Selector s = selector;
+			if (s != null) s.wakeup();
+		}
+		
+		public void flush() throws IOException {
+			while (true) {
+				if (current == null) {
+					byte[] next = queue.poll();
+					if (next == null) break;
+					
+					current = ByteBuffer.wrap(next);
+					currentStart = System.nanoTime();
+				}
+				
+				// Wait for the socket to drain if it couldn't take everything
+				channel.write(current);
+				if (current.hasRemaining()) return;
+				
+				metrics.recordWrite(System.nanoTime() - currentStart);
+				current = null;
+			}
+			
+			// Nothing left, stop watching for writability
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			writeRequested.set(false);
+			
+			// Pick up anything queued while we were finishing
+			if (!queue.isEmpty()) requestWrite();
+		}
+		
+		public void close() {
+			queue.clear();
+			current = null;
+			
+			if (key != null) key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Nothing more to do
+			}
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package net.shortround.rose;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A timeline of what each thread was doing, for finding where a frame went.
+ * Spans are written into a preallocated ring that keeps the most recent
+ * CAPACITY events, so recording takes no locks and allocates nothing, and
+ * the ring can be exported as Chrome trace-event JSON for chrome://tracing
+ * or Perfetto. Tracing follows the Metrics switch.
+ */
+public final class Trace {
+	// Events kept, a power of two so positions can be masked
+	public static final int CAPACITY = 8192;
+	private static final int MASK = CAPACITY - 1;
+	
+	// The whole trace is one process
+	private static final int PID = 1;
+	
+	// Event phases, as Chrome names them
+	private static final int PHASE_COMPLETE = 0;
+	private static final int PHASE_ASYNC_BEGIN = 1;
+	private static final int PHASE_ASYNC_END = 2;
+	private static final String[] PHASE_NAMES = { "X", "b", "e" };
+	
+	// Registered spans, indexed by id
+	private static final CopyOnWriteArrayList<Span> spans = new CopyOnWriteArrayList<Span>();
+	
+	// The ring, one event per slot across the arrays
+	private static final int[] eventSpans = new int[CAPACITY];
+	private static final int[] eventPhases = new int[CAPACITY];
+	private static final long[] eventStarts = new long[CAPACITY];
+	private static final long[] eventValues = new long[CAPACITY];
+	private static final long[] eventThreads = new long[CAPACITY];
+	private static final AtomicLong cursor = new AtomicLong();
+	
+	private Trace() {
+	}
+	
+	/*** Registration ***/
+	
+	public static synchronized Span span(String name) {
+		// Registering twice hands back the first one
+		for (Span existing : spans) {
+			if (existing.getName().equals(name)) return existing;
+		}
+		
+		Span span = new Span(spans.size(), name);
+		spans.add(span);
+		return span;
+	}
+	
+	/*** Recording ***/
+	
+	private static void record(int span, int phase, long start, long value) {
+		// Claim a slot, overwriting the oldest event once the ring is full
+		int slot = (int) (cursor.getAndIncrement() & MASK);
+		
+		eventSpans[slot] = span;
+		eventPhases[slot] = phase;
+		eventStarts[slot] = start;
+		eventValues[slot] = value;
+		eventThreads[slot] = Thread.currentThread().getId();
+	}
+	
+	/*** Exporting ***/
+	
+	/**
+	 * The ring as a Chrome trace, oldest event first. Events recorded while
+	 * exporting may come out torn, which is fine for a debugging aid.
+	 */
+	public static JSONObject toJson() throws JSONException {
+		long end = cursor.get();
+		long begin = Math.max(0, end - CAPACITY);
+		
+		JSONArray events = new JSONArray();
+		Map<Long, String> threads = new HashMap<Long, String>();
+		
+		for (long position = begin; position < end; position++) {
+			int slot = (int) (position & MASK);
+			int phase = eventPhases[slot];
+			
+			JSONObject event = new JSONObject();
+			event.put("name", spans.get(eventSpans[slot]).getName());
+			event.put("cat", "rose");
+			event.put("ph", PHASE_NAMES[phase]);
+			event.put("ts", eventStarts[slot] / 1000.0);
+			event.put("pid", PID);
+			event.put("tid", eventThreads[slot]);
+			
+			if (phase == PHASE_COMPLETE) {
+				event.put("dur", eventValues[slot] / 1000.0);
+			} else {
+				event.put("id", eventValues[slot]);
+			}
+			
+			events.put(event);
+			threads.put(eventThreads[slot], null);
+		}
+		
+		// Name the threads that are still around
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			Long tid = thread.getId();
+			if (!threads.containsKey(tid)) continue;
+			
+			JSONObject args = new JSONObject();
+			args.put("name", thread.getName());
+			
+			JSONObject event = new JSONObject();
+			event.put("name", "thread_name");
+			event.put("ph", "M");
+			event.put("pid", PID);
+			event.put("tid", tid);
+			event.put("args", args);
+			events.put(event);
+		}
+		
+		JSONObject json = new JSONObject();
+		json.put("traceEvents", events);
+		json.put("displayTimeUnit", "ms");
+		
+		return json;
+	}
+	
+	public static void writeTo(Writer writer) throws IOException {
+		try {
+			writer.write(toJson().toString());
+			writer.flush();
+		} catch (JSONException e) {
+			throw new IOException("Trace creation failed", e);
+		}
+	}
+	
+	public static void clear() {
+		cursor.set(0);
+	}
+	
+	/**
+	 * A named kind of span. Synchronous spans are timed with a start from
+	 * Metrics.start(); async spans may begin and end on different threads
+	 * and are paired by id.
+	 */
+	public static final class Span {
+		private final int id;
+		private final String name;
+		
+		Span(int id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * Records a span from a start taken with Metrics.start() until now.
+		 */
+		public void end(long start) {
+			if (start != 0) Trace.record(id, PHASE_COMPLETE, start, System.nanoTime() - start);
+		}
+		
+		/**
+		 * Records a span between two System.nanoTime() readings.
+		 */
+		public void record(long start, long end) {
+			if (Metrics.isEnabled() && start != 0) Trace.record(id, PHASE_COMPLETE, start, end - start);
+		}
+		
+		public void beginAsync(long asyncId) {
+			if (Metrics.isEnabled()) Trace.record(id, PHASE_ASYNC_BEGIN, System.nanoTime(), asyncId);
+		}
+		
+		public void endAsync(long asyncId) {
+			if (Metrics.isEnabled()) Trace.record(id, PHASE_ASYNC_END, System.nanoTime(), asyncId);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package net.shortround.rose;
+
+/**
+ * Closed-form particle motion. A trajectory places a particle from its
+ * start and end points and its interpolated progress, so no Path has to be
+ * built or measured. The drift is a per-particle value in [-1, 1] that a
+ * trajectory may use to vary its shape.
+ */
+public interface Trajectory {
+	
+	/**
+	 * Straight line from the start point to the end point.
+	 */
+	public static final Trajectory LINEAR = new Trajectory() {
+		public float getX(float startX, float startY, float endX, float endY, float drift, float progress) {
+			return startX + (endX - startX) * progress;
+		}
+		
+		public float getY(float startX, float startY, float endX, float endY, float drift, float progress) {
+			return startY + (endY - startY) * progress;
+		}
+	};
+	
+	/**
+	 * Quadratic Bezier whose control point is pushed sideways off the
+	 * midpoint by up to a quarter of the travel distance.
+	 */
+	public static final Trajectory QUADRATIC_DRIFT = new Trajectory() {
+		private static final float MAX_DRIFT = 0.25f;
+		
+		public float getX(float startX, float startY, float endX, float endY, float drift, float progress) {
+			float bow = 2.0f * progress * (1.0f - progress) * drift * MAX_DRIFT;
+			return startX + (endX - startX) * progress - (endY - startY) * bow;
+		}
+		
+		public float getY(float startX, float startY, float endX, float endY, float drift, float progress) {
+			float bow = 2.0f * progress * (1.0f - progress) * drift * MAX_DRIFT;
+			return startY + (endY - startY) * progress + (endX - startX) * bow;
+		}
+	};
+	
+	/**
+	 * Constant horizontal speed with a parabolic fall, launched upwards by
+	 * the drift so that every particle still lands on its end point.
+	 */
+	public static final Trajectory GRAVITY = new Trajectory() {
+		private static final float MAX_LAUNCH = 0.5f;
+		
+		public float getX(float startX, float startY, float endX, float endY, float drift, float progress) {
+			return startX + (endX - startX) * progress;
+		}
+		
+		public float getY(float startX, float startY, float endX, float endY, float drift, float progress) {
+			float launch = -Math.abs(drift) * MAX_LAUNCH * Math.abs(endY - startY);
+			return startY + launch * progress + (endY - startY - launch) * progress * progress;
+		}
+	};
+	
+	public float getX(float startX, float startY, float endX, float endY, float drift, float progress);
+	
+	public float getY(float startX, float startY, float endX, float endY, float drift, float progress);
+}
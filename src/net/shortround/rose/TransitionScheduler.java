@@ -0,0 +1,241 @@
+package net.shortround.rose;
+
+/**
+ * Decides when the rose's decay and display change. Commands only move a
+ * target; the scheduler then converges on it, dropping one petal per decay,
+ * overlapping drops and shortening them as a backlog builds, and holding
+ * reverts and display toggles back until every petal in the air has landed.
+ * Nothing is ever dropped, however fast commands arrive, and toggles keep
+ * their place: each one waits for the decay asked for before it, and what
+ * is asked for after it waits for the toggle.
+ *
+ * The scheduler keeps no clock of its own. Every call takes the current
+ * time, and getNextDeadline() says when update() next has work to do, so
+ * the same commands at the same times always give the same transitions.
+ */
+public class TransitionScheduler {
+	// Default timings
+	public static final long DEFAULT_DROP_MILLIS = 3000;
+	public static final long DEFAULT_MIN_DROP_MILLIS = 750;
+	public static final long DEFAULT_STAGGER_MILLIS = 250;
+	
+	// Returned by getNextDeadline() when there's nothing left to do
+	public static final long NO_DEADLINE = -1;
+	
+	/**
+	 * Told about each transition as it happens, on the thread that called
+	 * into the scheduler.
+	 */
+	public interface Listener {
+		// A petal starts falling into the given slot, taking the decay to level
+		public void onDropStarted(int slot, int decay, long durationMillis);
+		
+		// The petal in the given slot has landed and the slot is free again
+		public void onDropFinished(int slot);
+		
+		// The decay steps back to level, with no animation
+		public void onReverted(int decay);
+		
+		// The rose is shown or hidden
+		public void onDisplayChanged(boolean display);
+	}
+	
+	private final int minDecay;
+	private final int maxDecay;
+	private final Listener listener;
+	
+	// Timings
+	private long dropMillis = DEFAULT_DROP_MILLIS;
+	private long minDropMillis = DEFAULT_MIN_DROP_MILLIS;
+	private long staggerMillis = DEFAULT_STAGGER_MILLIS;
+	
+	// Where we are and where we've been asked to go
+	private int decay;
+	private boolean display;
+	private int targetDecay;
+	private boolean targetDisplay;
+	
+	// Toggles not yet made, oldest first, each with the decay it waits for
+	private int[] toggleDecays;
+	private int pendingToggles;
+	
+	// Petals in the air, by slot, and when each lands
+	private final long[] dropEnds;
+	private int dropsInFlight;
+	private long lastDropStart;
+	private boolean dropped;
+	
+	public TransitionScheduler(int minDecay, int maxDecay, int slots, Listener listener) {
+		this.minDecay = minDecay;
+		this.maxDecay = maxDecay;
+		this.listener = listener;
+		
+		dropEnds = new long[slots];
+		toggleDecays = new int[4];
+		decay = minDecay;
+		targetDecay = minDecay;
+		display = true;
+		targetDisplay = true;
+	}
+	
+	/*** Commands ***/
+	
+	public void decay(long now) {
+		if (targetDecay < maxDecay) targetDecay += 1;
+		update(now);
+	}
+	
+	public void revert(long now) {
+		if (targetDecay > minDecay) targetDecay -= 1;
+		update(now);
+	}
+	
+	public void toggleDisplay(long now) {
+		if (pendingToggles > 0 && toggleDecays[pendingToggles - 1] == targetDecay) {
+			// Toggling back at the same decay undoes the last toggle
+			pendingToggles--;
+		} else {
+			if (pendingToggles == toggleDecays.length) {
+				int[] grown = new int[toggleDecays.length * 2];
+				System.arraycopy(toggleDecays, 0, grown, 0, pendingToggles);
+				toggleDecays = grown;
+			}
+			
+			toggleDecays[pendingToggles++] = targetDecay;
+		}
+		
+		targetDisplay = !targetDisplay;
+		update(now);
+	}
+	
+	/*** Scheduling ***/
+	
+	/**
+	 * Runs every transition that is due, in order.
+	 */
+	public void update(long now) {
+		// Land any petals that have finished falling
+		for (int slot = 0; slot < dropEnds.length; slot++) {
+			if (dropEnds[slot] != 0 && dropEnds[slot] <= now) {
+				dropEnds[slot] = 0;
+				dropsInFlight--;
+				listener.onDropFinished(slot);
+			}
+		}
+		
+		// Reverts and toggles wait for the air to clear, and a toggle for the
+		// decay it was asked for at
+		while (dropsInFlight == 0) {
+			int target = getStepTarget();
+			while (decay > target) {
+				decay -= 1;
+				listener.onReverted(decay);
+			}
+			
+			if (pendingToggles == 0 || decay != target) break;
+			
+			pendingToggles--;
+			System.arraycopy(toggleDecays, 1, toggleDecays, 0, pendingToggles);
+			display = !display;
+			listener.onDisplayChanged(display);
+		}
+		
+		// Start as many drops as there are free slots, staggered, but none
+		// past the next toggle
+		int target = getStepTarget();
+		while (decay < target && dropsInFlight < dropEnds.length) {
+			if (dropped && now < lastDropStart + staggerMillis) break;
+			
+			long duration = getDropDuration(target - decay);
+			int slot = getFreeSlot();
+			
+			decay += 1;
+			dropEnds[slot] = now + duration;
+			dropsInFlight++;
+			lastDropStart = now;
+			dropped = true;
+			
+			listener.onDropStarted(slot, decay, duration);
+		}
+	}
+	
+	/**
+	 * When update() next has something to do, or NO_DEADLINE if it will only
+	 * have work after another command.
+	 */
+	public long getNextDeadline() {
+		long deadline = NO_DEADLINE;
+		
+		for (int slot = 0; slot < dropEnds.length; slot++) {
+			if (dropEnds[slot] != 0) deadline = earliest(deadline, dropEnds[slot]);
+		}
+		
+		// A waiting drop that only needs the stagger to pass
+		boolean waiting = decay < getStepTarget() && dropsInFlight < dropEnds.length;
+		if (waiting && dropped) deadline = earliest(deadline, lastDropStart + staggerMillis);
+		
+		return deadline;
+	}
+	
+	/**
+	 * The decay to head for next, the one the oldest pending toggle waits
+	 * for or, with none pending, the target.
+	 */
+	private int getStepTarget() {
+		return pendingToggles > 0 ? toggleDecays[0] : targetDecay;
+	}
+	
+	private static long earliest(long deadline, long time) {
+		return deadline == NO_DEADLINE || time < deadline ? time : deadline;
+	}
+	
+	/**
+	 * Drops get shorter the more are waiting behind them, down to a floor.
+	 */
+	private long getDropDuration(int backlog) {
+		return Math.max(minDropMillis, dropMillis / Math.max(backlog, 1));
+	}
+	
+	private int getFreeSlot() {
+		for (int slot = 0; slot < dropEnds.length; slot++) {
+			if (dropEnds[slot] == 0) return slot;
+		}
+		
+		throw new IllegalStateException("No free slot");
+	}
+	
+	/*** Properties ***/
+	
+	public void setTimings(long dropMillis, long minDropMillis, long staggerMillis) {
+		this.dropMillis = dropMillis;
+		this.minDropMillis = minDropMillis;
+		this.staggerMillis = staggerMillis;
+	}
+	
+	public int getDecay() {
+		return decay;
+	}
+	
+	public boolean getDisplay() {
+		return display;
+	}
+	
+	public int getTargetDecay() {
+		return targetDecay;
+	}
+	
+	public boolean getTargetDisplay() {
+		return targetDisplay;
+	}
+	
+	/**
+	 * True once the rose has caught up with every command.
+	 */
+	public boolean isSettled() {
+		return decay == targetDecay && pendingToggles == 0 && dropsInFlight == 0;
+	}
+	
+	public int getDropsInFlight() {
+		return dropsInFlight;
+	}
+}
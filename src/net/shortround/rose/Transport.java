@@ -0,0 +1,66 @@
+package net.shortround.rose;
+
+/**
+ * A channel that remotes send commands over and receive state from. It
+ * knows nothing about what the commands mean; complete commands are handed
+ * to the listener on the transport's own threads, and writes are queued so
+ * that callers never wait on the link.
+ */
+public interface Transport {
+	// Constants that indicate the current connection state
+	public static final int STATE_NONE = 0;       // Doing nothing
+	public static final int STATE_LISTEN = 1;     // Listening for a connection
+	public static final int STATE_CONNECTING = 2; // Initiating an outgoing connection
+	public static final int STATE_CONNECTED = 3;  // Connected to at least one remote
+	public static final int STATE_BACKOFF = 4;    // Waiting to listen again after a failure
+	
+	// What to do with a write when a remote's queue is full
+	public static final int WRITE_DROP_OLDEST = 0; // Make room by discarding the oldest write
+	public static final int WRITE_DROP_NEWEST = 1; // Discard the new write
+	public static final int WRITE_BLOCK = 2;       // Hold the new write for up to the timeout, then discard it
+	
+	/**
+	 * Receives events from a transport, on the transport's threads.
+	 */
+	public interface Listener {
+		public void onStateChanged(int state);
+		public void onConnected(int clientId);
+		public void onCommand(int clientId, int opcode, int sequence);
+		public void onConnectionLost(int clientId);
+	}
+	
+	public void setListener(Listener listener);
+	
+	public void start();
+	public void stop();
+	public int getState();
+	
+	/*** Writing ***/
+	
+	/**
+	 * Queues a write for every connected remote.
+	 */
+	public void write(byte[] out);
+	
+	/**
+	 * Queues a write for one remote.
+	 */
+	public void write(int clientId, byte[] out);
+	
+	/**
+	 * Queues the same state for every remote, each in the encoding it
+	 * negotiated. Either may be null if nobody uses it.
+	 */
+	public void broadcast(byte[] binary, byte[] text);
+	
+	public void setWritePolicy(int policy, long timeoutMillis);
+	
+	/*** Clients ***/
+	
+	public void setBinaryProtocol(int clientId);
+	public boolean isBinaryProtocol(int clientId);
+	public int getClientCount();
+	public int getClientCount(boolean binaryProtocol);
+	
+	public TransportMetrics getMetrics();
+}
@@ -0,0 +1,122 @@
+package net.shortround.rose;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write statistics for one transport, updated from its writing threads.
+ * Everything recorded here also goes into the process wide metrics, added up
+ * across every transport, so the stats command reports it.
+ */
+public class TransportMetrics {
+	// Across every transport
+	private static final Metrics.Histogram WRITE = Metrics.histogram("transport.write");
+	private static final Metrics.Counter DROPPED_WRITES = Metrics.counter("transport.dropped_writes");
+	private static final Metrics.Gauge QUEUE_DEPTH = Metrics.gauge("transport.queue_depth");
+	private static final Metrics.Gauge MAX_QUEUE_DEPTH = Metrics.gauge("transport.max_queue_depth");
+	private static final Metrics.Counter CONNECTIONS_LOST = Metrics.counter("transport.connections_lost");
+	private static final Metrics.Counter HEARTBEAT_TIMEOUTS = Metrics.counter("transport.heartbeat_timeouts");
+	private static final Metrics.Histogram RECONNECT = Metrics.histogram("transport.reconnect");
+	
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong droppedWrites = new AtomicLong();
+	private final AtomicLong totalWriteNanos = new AtomicLong();
+	private volatile long maxQueueDepth;
+	private volatile long lastWriteNanos;
+	private volatile long maxWriteNanos;
+	
+	// Connection statistics
+	private final AtomicLong connectionsLost = new AtomicLong();
+	private final AtomicLong heartbeatTimeouts = new AtomicLong();
+	private volatile long reconnects;
+	private volatile long lastReconnectNanos;
+	private volatile long maxReconnectNanos;
+	
+	/*** Recording ***/
+	
+	public void recordWrite(long nanos) {
+		WRITE.record(nanos);
+		writes.incrementAndGet();
+		totalWriteNanos.addAndGet(nanos);
+		lastWriteNanos = nanos;
+		if (nanos > maxWriteNanos) maxWriteNanos = nanos;
+	}
+	
+	public void recordDrop() {
+		DROPPED_WRITES.increment();
+		droppedWrites.incrementAndGet();
+	}
+	
+	public void recordQueueDepth(int depth) {
+		QUEUE_DEPTH.set(depth);
+		MAX_QUEUE_DEPTH.setMax(depth);
+		if (depth > maxQueueDepth) maxQueueDepth = depth;
+	}
+	
+	public void recordConnectionLost() {
+		CONNECTIONS_LOST.increment();
+		connectionsLost.incrementAndGet();
+	}
+	
+	public void recordHeartbeatTimeout() {
+		HEARTBEAT_TIMEOUTS.increment();
+		heartbeatTimeouts.incrementAndGet();
+	}
+	
+	/**
+	 * Records how long the transport went without any remote, from the
+	 * last one being lost to the next one connecting.
+	 */
+	public synchronized void recordReconnect(long nanos) {
+		RECONNECT.record(nanos);
+		reconnects++;
+		lastReconnectNanos = nanos;
+		if (nanos > maxReconnectNanos) maxReconnectNanos = nanos;
+	}
+	
+	/*** Properties ***/
+	
+	public long getWrites() {
+		return writes.get();
+	}
+	
+	public long getDroppedWrites() {
+		return droppedWrites.get();
+	}
+	
+	public long getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+	
+	public long getLastWriteNanos() {
+		return lastWriteNanos;
+	}
+	
+	public long getMaxWriteNanos() {
+		return maxWriteNanos;
+	}
+	
+	public long getAverageWriteNanos() {
+		long count = writes.get();
+		return count > 0 ? totalWriteNanos.get() / count : 0;
+	}
+	
+	public long getConnectionsLost() {
+		return connectionsLost.get();
+	}
+	
+	public long getHeartbeatTimeouts() {
+		return heartbeatTimeouts.get();
+	}
+	
+	public long getReconnects() {
+		return reconnects;
+	}
+	
+	public long getLastReconnectNanos() {
+		return lastReconnectNanos;
+	}
+	
+	public long getMaxReconnectNanos() {
+		return maxReconnectNanos;
+	}
+}
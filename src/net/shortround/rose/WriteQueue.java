@@ -0,0 +1,129 @@
+package net.shortround.rose;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pending writes for one remote, bounded, with the transport's policy
+ * deciding what gives when it fills up. Writes are queued from the UI
+ * thread, so no policy ever makes the caller wait: under WRITE_BLOCK a write
+ * that finds the queue full waits in a second bounded queue instead, and
+ * the writing thread lets it in as it makes room, or discards it once its
+ * timeout has passed.
+ */
+public class WriteQueue {
+	// Pending writes per remote
+	public static final int DEFAULT_CAPACITY = 16;
+	
+	private final BlockingQueue<byte[]> queue;
+	private final TransportMetrics metrics;
+	
+	// Writes waiting for room, in order, guarded by this
+	private final byte[][] waiting;
+	private final long[] waitingDeadlines;
+	private int waitingHead;
+	private volatile int waitingCount;
+	
+	public WriteQueue(TransportMetrics metrics) {
+		this(DEFAULT_CAPACITY, metrics);
+	}
+	
+	public WriteQueue(int capacity, TransportMetrics metrics) {
+		queue = new ArrayBlockingQueue<byte[]>(capacity);
+		this.metrics = metrics;
+		
+		waiting = new byte[capacity][];
+		waitingDeadlines = new long[capacity];
+	}
+	
+	/**
+	 * Queues a write without waiting, returning false if it was dropped. A
+	 * write left waiting for room under WRITE_BLOCK counts as queued, and is
+	 * recorded as dropped later if its timeout passes first.
+	 */
+	public boolean offer(byte[] buffer, int policy, long timeoutMillis) {
+		boolean queued = true;
+		
+		switch (policy) {
+		case Transport.WRITE_DROP_OLDEST:
+			while (!queue.offer(buffer)) {
+				if (queue.poll() != null) metrics.recordDrop();
+			}
+			break;
+		case Transport.WRITE_DROP_NEWEST:
+			queued = queue.offer(buffer);
+			break;
+		case Transport.WRITE_BLOCK:
+			queued = offerOrWait(buffer, timeoutMillis);
+			break;
+		}
+		
+		if (!queued) metrics.recordDrop();
+		metrics.recordQueueDepth(size());
+		
+		return queued;
+	}
+	
+	private synchronized boolean offerOrWait(byte[] buffer, long timeoutMillis) {
+		// Nothing may overtake the writes already waiting
+		admitWaiting();
+		if (waitingCount == 0 && queue.offer(buffer)) return true;
+		if (waitingCount == waiting.length) return false;
+		
+		int tail = (waitingHead + waitingCount) % waiting.length;
+		waiting[tail] = buffer;
+		waitingDeadlines[tail] = System.nanoTime() + timeoutMillis * 1000000L;
+		waitingCount++;
+		
+		return true;
+	}
+	
+	// Moves waiting writes into the queue while there's room, dropping any that timed out
+	private synchronized void admitWaiting() {
+		long now = System.nanoTime();
+		while (waitingCount > 0) {
+			if (waitingDeadlines[waitingHead] - now < 0) {
+				metrics.recordDrop();
+			} else if (!queue.offer(waiting[waitingHead])) {
+				break;
+			}
+			
+			waiting[waitingHead] = null;
+			waitingHead = (waitingHead + 1) % waiting.length;
+			waitingCount--;
+		}
+	}
+	
+	/**
+	 * Takes the next write, called only by the thread doing the writing.
+	 */
+	public byte[] poll() {
+		byte[] buffer = queue.poll();
+		
+		// Taking one makes room for the next waiting write
+		if (waitingCount > 0) {
+			admitWaiting();
+			if (buffer == null) buffer = queue.poll();
+		}
+		
+		return buffer;
+	}
+	
+	public boolean isEmpty() {
+		return queue.isEmpty() && waitingCount == 0;
+	}
+	
+	public int size() {
+		return queue.size() + waitingCount;
+	}
+	
+	public synchronized void clear() {
+		queue.clear();
+		
+		while (waitingCount > 0) {
+			waiting[waitingHead] = null;
+			waitingHead = (waitingHead + 1) % waiting.length;
+			waitingCount--;
+		}
+	}
+}